@@ -0,0 +1,235 @@
+package myrmi;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Client-side cache of whole chunks, bounded by bytes and evicted least recently used first.
+// Entries evicted from memory spill to an optional disk tier, which has its own byte budget
+// and survives restarts. Callers choose keys that change whenever the chunk's content can
+// (see FileTransferClient.cacheKey), so a stale entry is never looked up again and simply
+// ages out.
+public class ChunkCache {
+    private final long maxMemoryBytes;
+    private final Path diskDirectory;
+    private final long maxDiskBytes;
+
+    private final LinkedHashMap<String, byte[]> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryBytes;
+    // Disk entries by file name (a hash of the key), so the index can be rebuilt from the directory.
+    private final LinkedHashMap<String, Long> disk = new LinkedHashMap<>(16, 0.75f, true);
+    private long diskBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public ChunkCache(long maxMemoryBytes) {
+        this(maxMemoryBytes, null, 0);
+    }
+
+    public ChunkCache(long maxMemoryBytes, Path diskDirectory, long maxDiskBytes) {
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.diskDirectory = diskDirectory;
+        this.maxDiskBytes = maxDiskBytes;
+        if (diskDirectory != null) {
+            loadDiskIndex();
+        }
+    }
+
+    public byte[] get(String key) {
+        synchronized (this) {
+            byte[] data = memory.get(key);
+            if (data != null) {
+                hits.incrementAndGet();
+                return data;
+            }
+        }
+        if (diskDirectory != null) {
+            String fileName = diskFileName(key);
+            boolean onDisk;
+            synchronized (this) {
+                onDisk = disk.get(fileName) != null;
+            }
+            if (onDisk) {
+                try {
+                    byte[] data = Files.readAllBytes(diskDirectory.resolve(fileName));
+                    diskHits.incrementAndGet();
+                    putInMemory(key, data);
+                    return data;
+                } catch (IOException e) {
+                    removeFromDisk(fileName);
+                }
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    public void put(String key, byte[] data) {
+        if (data.length > maxMemoryBytes) {
+            spill(key, data);
+            return;
+        }
+        putInMemory(key, data);
+    }
+
+    public synchronized void invalidate(String key) {
+        byte[] removed = memory.remove(key);
+        if (removed != null) {
+            memoryBytes -= removed.length;
+        }
+        if (diskDirectory != null) {
+            removeFromDisk(diskFileName(key));
+        }
+    }
+
+    private void putInMemory(String key, byte[] data) {
+        List<Map.Entry<String, byte[]>> evicted = new ArrayList<>();
+        synchronized (this) {
+            byte[] previous = memory.put(key, data);
+            memoryBytes += data.length - (previous != null ? previous.length : 0);
+            Iterator<Map.Entry<String, byte[]>> eldest = memory.entrySet().iterator();
+            while (memoryBytes > maxMemoryBytes && eldest.hasNext()) {
+                Map.Entry<String, byte[]> entry = eldest.next();
+                eldest.remove();
+                memoryBytes -= entry.getValue().length;
+                evicted.add(entry);
+            }
+        }
+        // Disk writes happen outside the lock so lookups don't wait on them.
+        for (Map.Entry<String, byte[]> entry : evicted) {
+            spill(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void spill(String key, byte[] data) {
+        if (diskDirectory == null || data.length > maxDiskBytes) {
+            evictions.incrementAndGet();
+            return;
+        }
+        String fileName = diskFileName(key);
+        try {
+            Path temp = Files.createTempFile(diskDirectory, fileName, ".tmp");
+            Files.write(temp, data);
+            Files.move(temp, diskDirectory.resolve(fileName), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Chunk cache: could not write " + fileName + ": " + e.getMessage());
+            evictions.incrementAndGet();
+            return;
+        }
+        List<String> evicted = new ArrayList<>();
+        synchronized (this) {
+            Long previous = disk.put(fileName, (long) data.length);
+            diskBytes += data.length - (previous != null ? previous : 0);
+            Iterator<Map.Entry<String, Long>> eldest = disk.entrySet().iterator();
+            while (diskBytes > maxDiskBytes && eldest.hasNext()) {
+                Map.Entry<String, Long> entry = eldest.next();
+                eldest.remove();
+                diskBytes -= entry.getValue();
+                evicted.add(entry.getKey());
+            }
+        }
+        for (String name : evicted) {
+            evictions.incrementAndGet();
+            try {
+                Files.deleteIfExists(diskDirectory.resolve(name));
+            } catch (IOException e) {
+                System.err.println("Chunk cache: could not delete " + name + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private synchronized void removeFromDisk(String fileName) {
+        Long size = disk.remove(fileName);
+        if (size != null) {
+            diskBytes -= size;
+            try {
+                Files.deleteIfExists(diskDirectory.resolve(fileName));
+            } catch (IOException e) {
+                System.err.println("Chunk cache: could not delete " + fileName + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // Oldest files first, so the LRU order roughly survives a restart.
+    private void loadDiskIndex() {
+        try {
+            Files.createDirectories(diskDirectory);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot use " + diskDirectory + " for the chunk cache: " + e.getMessage(), e);
+        }
+        File[] files = diskDirectory.toFile().listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File file : files) {
+            if (file.getName().endsWith(".tmp")) {
+                file.delete(); // torn spill
+            } else if (file.isFile()) {
+                disk.put(file.getName(), file.length());
+                diskBytes += file.length();
+            }
+        }
+    }
+
+    private static String diskFileName(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder();
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return name.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getDiskHits() {
+        return diskHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    public synchronized long getDiskBytes() {
+        return diskBytes;
+    }
+
+    @Override
+    public String toString() {
+        long total = hits.get() + diskHits.get() + misses.get();
+        return String.format("chunk cache: %d hits, %d disk hits, %d misses (%.1f%% hit rate), %d evictions, %d MB in memory, %d MB on disk",
+                hits.get(), diskHits.get(), misses.get(), total == 0 ? 0.0 : 100.0 * (hits.get() + diskHits.get()) / total,
+                evictions.get(), getMemoryBytes() >> 20, getDiskBytes() >> 20);
+    }
+}
@@ -0,0 +1,52 @@
+package myrmi;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32C;
+
+// CRC32C checksums of whole chunks. The client computes one per chunk at upload and the
+// manifest carries it; storage servers verify it on write and store it with the chunk,
+// where the scrubber checks the chunk against it.
+// Checksums are unsigned 32-bit values held in a long, with NONE for "not known".
+public final class ChunkChecksums {
+    public static final long NONE = -1;
+
+    private ChunkChecksums() {
+    }
+
+    public static long of(byte[] data, int offset, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(data, offset, length);
+        return crc.getValue();
+    }
+
+    // Leaves data's position where it was.
+    public static long of(ByteBuffer data) {
+        CRC32C crc = new CRC32C();
+        crc.update(data.duplicate());
+        return crc.getValue();
+    }
+
+    public static long of(FileChannel channel, long position, long length) throws IOException {
+        CRC32C crc = new CRC32C();
+        ByteBuffer slice = ByteBuffer.allocateDirect((int) Math.min(ChunkTransferServer.SLICE_SIZE, Math.max(1, length)));
+        long done = 0;
+        while (done < length) {
+            slice.clear().limit((int) Math.min(slice.capacity(), length - done));
+            int n = channel.read(slice, position + done);
+            if (n < 0) {
+                break;
+            }
+            slice.flip();
+            crc.update(slice);
+            done += n;
+        }
+        return crc.getValue();
+    }
+
+    public static IOException mismatch(String chunkId, long expected, long actual) {
+        return new IOException("Chunk " + chunkId + " failed its checksum (expected " + Long.toHexString(expected)
+                + ", got " + Long.toHexString(actual) + ")");
+    }
+}
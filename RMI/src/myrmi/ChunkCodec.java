@@ -0,0 +1,125 @@
+package myrmi;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Per-chunk compression. The client compresses a chunk before upload when a quick probe of
+// its start says it will shrink, and records the codec in the manifest; storage servers
+// store whatever bytes they are sent. Already-compressed content (media, archives) fails the
+// probe and is stored as is, so it costs one small trial compression and nothing more.
+//
+// Only DEFLATE (the JDK's Deflater at its fastest level) is available without extra
+// libraries; codec ids are bytes so a faster codec can be added alongside it.
+public final class ChunkCodec {
+    public static final byte NONE = 0;
+    public static final byte DEFLATE = 1;
+
+    private static final int PROBE_BYTES = 64 * 1024;
+    // Compressing must save at least this fraction of the bytes to be worth a decode.
+    private static final double MAX_RATIO = 0.9;
+
+    private ChunkCodec() {
+    }
+
+    public static String name(byte codec) {
+        switch (codec) {
+            case NONE:
+                return "none";
+            case DEFLATE:
+                return "deflate";
+            default:
+                return "codec " + codec;
+        }
+    }
+
+    // Whether the chunk looks compressible, judged from its first PROBE_BYTES.
+    public static boolean probe(byte[] data, int offset, int length) {
+        int sample = Math.min(length, PROBE_BYTES);
+        if (sample == 0) {
+            return false;
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data, offset, sample);
+            deflater.finish();
+            byte[] out = new byte[sample];
+            int produced = 0;
+            while (!deflater.finished() && produced < out.length) {
+                produced += deflater.deflate(out, produced, out.length - produced);
+            }
+            return deflater.finished() && produced < sample * MAX_RATIO;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    public static byte[] encode(byte codec, byte[] data, int offset, int length) {
+        if (codec == NONE) {
+            return Arrays.copyOfRange(data, offset, offset + length);
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+            byte[] out = new byte[maxEncodedLength(length)];
+            int produced = 0;
+            while (!deflater.finished()) {
+                produced += deflater.deflate(out, produced, out.length - produced);
+            }
+            return Arrays.copyOf(out, produced);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    // The chunk compressed with DEFLATE if both the probe and the result say it pays, or null
+    // if it should be stored as is.
+    public static byte[] encodeIfSmaller(byte[] data, int offset, int length) {
+        if (!probe(data, offset, length)) {
+            return null;
+        }
+        byte[] encoded = encode(DEFLATE, data, offset, length);
+        return encoded.length < length * MAX_RATIO ? encoded : null;
+    }
+
+    // The original chunk, which must be exactly originalLength bytes long. Damaged input
+    // fails rather than decoding to something else.
+    public static byte[] decode(byte codec, byte[] stored, int offset, int length, int originalLength) throws IOException {
+        if (codec == NONE) {
+            return Arrays.copyOfRange(stored, offset, offset + length);
+        }
+        if (codec != DEFLATE) {
+            throw new IOException("Unknown chunk codec " + codec);
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(stored, offset, length);
+            byte[] out = new byte[originalLength];
+            byte[] overflow = new byte[1]; // lets the end of the stream be read once out is full
+            int produced = 0;
+            while (!inflater.finished() && produced <= out.length) {
+                int n = produced < out.length ? inflater.inflate(out, produced, out.length - produced) : inflater.inflate(overflow);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                produced += n;
+            }
+            if (produced != originalLength || !inflater.finished() || inflater.getRemaining() > 0) {
+                throw new IOException("Compressed chunk does not decode to " + originalLength + " bytes");
+            }
+            return out;
+        } catch (DataFormatException e) {
+            throw new IOException("Compressed chunk is damaged: " + e.getMessage(), e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    // An upper bound on the encoded size of length bytes, for sizing receive buffers.
+    public static int maxEncodedLength(int length) {
+        return length + (length >> 12) + (length >> 14) + (length >> 25) + 64;
+    }
+}
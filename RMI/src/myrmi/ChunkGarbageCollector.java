@@ -0,0 +1,147 @@
+package myrmi;
+
+import java.rmi.registry.LocateRegistry;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// Reclaims chunks no file refers to: copies left by deleted files and overwritten versions,
+// and chunks stored by uploads that never committed. Each pass pages through every live
+// server's inventory of the chunks this metadata shard owns (see MetadataShards),
+// LIST_PAGE_SIZE chunks at a time, and compares them with the ones that manifests, open
+// upload sessions and recent deduplication lookups refer to. A chunk is only deleted once it
+// has been unreferenced on every pass for GRACE_MS, so an upload still on its way to
+// committing keeps its chunks. Deletions go out in batches of BATCH_SIZE with BATCH_PAUSE_MS
+// between them, so a large backlog trickles away instead of stalling the servers.
+public class ChunkGarbageCollector {
+    public static final long INTERVAL_MS = 5 * 60 * 1000;
+    public static final long GRACE_MS = 15 * 60 * 1000;
+    public static final int BATCH_SIZE = 256;
+    public static final long BATCH_PAUSE_MS = 200;
+    public static final int LIST_PAGE_SIZE = ChunkInventory.REPORT_BATCH_SIZE;
+
+    private final MetadataServiceImpl metadata;
+    private final long graceNanos;
+    // server -> chunk -> System.nanoTime() of the first pass that found it unreferenced
+    private final Map<String, Map<String, Long>> orphanedSince = new HashMap<>();
+    private final Map<String, StorageService> storageStubs = new ConcurrentHashMap<>();
+
+    public ChunkGarbageCollector(MetadataServiceImpl metadata) {
+        this(metadata, GRACE_MS);
+    }
+
+    public ChunkGarbageCollector(MetadataServiceImpl metadata, long graceMs) {
+        this.metadata = metadata;
+        this.graceNanos = TimeUnit.MILLISECONDS.toNanos(graceMs);
+    }
+
+    public long getGraceNanos() {
+        return graceNanos;
+    }
+
+    // One pass over all live servers. Returns the number of chunks deleted.
+    public synchronized int collect() {
+        int deleted = 0;
+        try {
+            Set<String> referenced = metadata.referencedChunks();
+            long now = System.nanoTime();
+            for (String server : metadata.liveServers()) {
+                Map<String, Long> since = orphanedSince.computeIfAbsent(server, k -> new HashMap<>());
+                Set<String> orphans = new HashSet<>();
+                String cursor = null;
+                while (true) {
+                    List<String> page;
+                    try {
+                        page = ChunkInventory.decodeBatch(storage(server).listChunks(metadata.shard(), metadata.shardCount(),
+                                cursor, LIST_PAGE_SIZE));
+                    } catch (Exception e) {
+                        storageStubs.remove(server);
+                        System.err.println("Garbage collection couldn't list chunks on " + server + ": " + e.getMessage());
+                        orphans = null;
+                        break;
+                    }
+                    List<String> expired = new ArrayList<>();
+                    for (String chunkName : page) {
+                        if (referenced.contains(chunkName)) {
+                            continue;
+                        }
+                        orphans.add(chunkName);
+                        if (now - since.computeIfAbsent(chunkName, k -> now) >= graceNanos) {
+                            expired.add(chunkName);
+                        }
+                    }
+                    deleted += reclaim(server, expired, since);
+                    if (page.size() < LIST_PAGE_SIZE) {
+                        break;
+                    }
+                    cursor = page.get(page.size() - 1); // pages come in name order
+                }
+                // Only a complete listing shows which chunks are no longer orphaned.
+                if (orphans != null) {
+                    since.keySet().retainAll(orphans);
+                }
+            }
+            orphanedSince.keySet().retainAll(metadata.liveServers());
+        } catch (RuntimeException e) {
+            // Keep the collector scheduled.
+            System.err.println("Error collecting unreferenced chunks: " + e.getMessage());
+        }
+        return deleted;
+    }
+
+    private int reclaim(String server, List<String> expired, Map<String, Long> since) {
+        int deleted = 0;
+        for (int from = 0; from < expired.size(); from += BATCH_SIZE) {
+            if (from > 0) {
+                try {
+                    Thread.sleep(BATCH_PAUSE_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            // Anything committed since the pass started drops out of the batch here.
+            List<String> batch = metadata.beginReclaim(server, expired.subList(from, Math.min(from + BATCH_SIZE, expired.size())));
+            if (batch.isEmpty()) {
+                continue;
+            }
+            try {
+                deleted += storage(server).deleteChunks(batch);
+                since.keySet().removeAll(batch);
+                metadata.chunksReclaimed(server, batch);
+            } catch (Exception e) {
+                storageStubs.remove(server);
+                System.err.println("Garbage collection couldn't delete chunks on " + server + ": " + e.getMessage());
+                // Some of the batch may be gone; count all of it as reclaimed. Whatever is left
+                // is unreferenced and turns up again on a later pass.
+                try {
+                    metadata.chunksReclaimed(server, batch);
+                } catch (Exception ignored) {
+                    // The marks expire after the grace period.
+                }
+                break;
+            }
+        }
+        if (deleted > 0) {
+            System.out.println("Garbage collection reclaimed " + deleted + " unreferenced chunks on " + server);
+        }
+        return deleted;
+    }
+
+    private StorageService storage(String server) throws Exception {
+        StorageService stub = storageStubs.get(server);
+        if (stub == null) {
+            String registry = metadata.registryOf(server);
+            int colon = registry.lastIndexOf(':');
+            stub = (StorageService) LocateRegistry.getRegistry(registry.substring(0, colon),
+                    Integer.parseInt(registry.substring(colon + 1))).lookup(server);
+            storageStubs.put(server, stub);
+        }
+        return stub;
+    }
+}
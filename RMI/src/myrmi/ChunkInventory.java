@@ -0,0 +1,103 @@
+package myrmi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+// Compact summary of a storage server's chunks, used to reconcile block reports.
+// Chunk names are hashed into BUCKETS buckets; a bucket's digest is the sum of its
+// members' hashes, so it doesn't depend on order and both sides can compute it
+// independently. Only buckets whose digests differ need their chunk names sent.
+//
+// Chunk names travel in report batches: sorted, front-coded against the previous name
+// (shared prefix length + suffix) and deflated. Names of one file differ only in their
+// trailing index, so a batch costs a few bytes per chunk.
+public class ChunkInventory {
+    public static final int BUCKETS = 256;
+    public static final int REPORT_BATCH_SIZE = 20000;
+
+    private ChunkInventory() {
+    }
+
+    public static long hash(String chunkName) {
+        // FNV-1a over the UTF-16 chars, then a final mix so sums spread well.
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < chunkName.length(); i++) {
+            h ^= chunkName.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    public static int bucketOf(String chunkName) {
+        return (int) Long.remainderUnsigned(hash(chunkName), BUCKETS);
+    }
+
+    public static long[] digest(Collection<String> chunkNames) {
+        long[] digests = new long[BUCKETS];
+        for (String chunkName : chunkNames) {
+            long h = hash(chunkName);
+            digests[(int) Long.remainderUnsigned(h, BUCKETS)] += h;
+        }
+        return digests;
+    }
+
+    public static List<String> inBuckets(Collection<String> chunkNames, Collection<Integer> buckets) {
+        boolean[] wanted = new boolean[BUCKETS];
+        for (int bucket : buckets) {
+            wanted[bucket] = true;
+        }
+        List<String> selected = new ArrayList<>();
+        for (String chunkName : chunkNames) {
+            if (wanted[bucketOf(chunkName)]) {
+                selected.add(chunkName);
+            }
+        }
+        return selected;
+    }
+
+    // Expects names in sorted order for the best compression; any order decodes correctly.
+    public static byte[] encodeBatch(List<String> chunkNames) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes))) {
+            out.writeInt(chunkNames.size());
+            String previous = "";
+            for (String chunkName : chunkNames) {
+                int shared = 0;
+                int max = Math.min(previous.length(), chunkName.length());
+                while (shared < max && previous.charAt(shared) == chunkName.charAt(shared)) {
+                    shared++;
+                }
+                out.writeShort(shared);
+                out.writeUTF(chunkName.substring(shared));
+                previous = chunkName;
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    public static List<String> decodeBatch(byte[] batch) throws IOException {
+        try (DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(batch)))) {
+            int count = in.readInt();
+            List<String> chunkNames = new ArrayList<>(count);
+            String previous = "";
+            for (int i = 0; i < count; i++) {
+                int shared = in.readUnsignedShort();
+                String chunkName = previous.substring(0, shared) + in.readUTF();
+                chunkNames.add(chunkName);
+                previous = chunkName;
+            }
+            return chunkNames;
+        }
+    }
+}
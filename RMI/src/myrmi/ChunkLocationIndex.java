@@ -0,0 +1,736 @@
+package myrmi;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Where every chunk lives, in about 8 bytes per chunk. Server names are interned to small
+// ids and a chunk's locations are a bitmask of those ids, one 64-bit word per 64 servers.
+// Chunks named "<file>_chunk_<i>" are keyed by (file, i) and stored in one array per file,
+// indexed by i; any other chunk name, or an index far past the end of its file's array, gets
+// its own map entry. Content-addressed chunks ("sha256-<hex digest>") are keyed by their
+// 32-byte digest in a primitive open-addressed table, about 50 bytes per chunk with no
+// per-chunk objects. Each server also keeps the indexes it holds per file and the table
+// entries it holds, so listing one server's chunks doesn't scan the whole cluster.
+//
+// Reads of indexed chunks never lock: a file's masks live in an AtomicLongArray, which is
+// only replaced (and republished through a volatile field) when it grows. Writers to the
+// same file serialize on that file's slot, then on the server's entry. The digest table is
+// guarded by its own monitor, taken before any server's.
+public class ChunkLocationIndex implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final String CHUNK_MARKER = "_chunk_";
+    private static final long[] NOWHERE = new long[0];
+    // How far past the end of a file's array a new index may land; anything further goes to
+    // the map, so a stray name like "x_chunk_999999999" can't allocate gigabytes.
+    private static final int MAX_DENSE_GROWTH = 4096;
+    private static final String DIGEST_PREFIX = "sha256-"; // as named by FileTransferClient.contentId
+    private static final int DIGEST_HEX = 64;
+
+    private transient Map<String, ServerChunks> servers = new ConcurrentHashMap<>();
+    private transient volatile String[] serverNames = new String[0]; // by id; null once released
+    private transient Map<String, FileSlots> files = new ConcurrentHashMap<>();
+    private transient Map<String, long[]> otherChunks = new ConcurrentHashMap<>();
+    private transient DigestChunks digestChunks = new DigestChunks();
+    private transient AtomicLong locatedChunks = new AtomicLong();
+
+    private static final class FileSlots {
+        volatile Slots slots = Slots.EMPTY;
+        volatile int sparse; // indexed chunks of this file kept in otherChunks
+        int located; // chunks with at least one location, dense or sparse
+        boolean retired; // dropped from files once empty; writers holding it start over
+    }
+
+    private static final class Slots {
+        static final Slots EMPTY = new Slots(0, 1);
+
+        final int words;
+        final AtomicLongArray masks; // word w of chunk i at i * words + w
+
+        Slots(int chunks, int words) {
+            this.words = words;
+            this.masks = new AtomicLongArray(chunks * words);
+        }
+
+        int chunks() {
+            return masks.length() / words;
+        }
+
+        long[] read(int index) {
+            long[] mask = new long[words];
+            for (int w = 0; w < words; w++) {
+                mask[w] = masks.get(index * words + w);
+            }
+            return mask;
+        }
+    }
+
+    // Chunks named by digest. Each gets an entry id; its digest and location mask sit at that
+    // id in flat arrays, and a linear-probing table of ids, at most half full, finds the
+    // entry by digest. Freed ids are reused, so the arrays only grow with the peak count.
+    private static final class DigestChunks {
+        static final int DIGEST_WORDS = 4;
+
+        int words = 1;
+        long[] digests = new long[16 * DIGEST_WORDS];
+        long[] masks = new long[16];
+        int[] table = new int[32]; // entry id + 1, 0 for an empty slot
+        int[] freeIds = new int[16];
+        int freeCount;
+        int allocated;
+        int size;
+
+        int find(long[] digest) {
+            int mask = table.length - 1;
+            for (int slot = slotOf(digest[0], mask); ; slot = (slot + 1) & mask) {
+                int entry = table[slot] - 1;
+                if (entry < 0) {
+                    return -1;
+                }
+                int at = entry * DIGEST_WORDS;
+                if (digests[at] == digest[0] && digests[at + 1] == digest[1]
+                        && digests[at + 2] == digest[2] && digests[at + 3] == digest[3]) {
+                    return entry;
+                }
+            }
+        }
+
+        int insert(long[] digest) {
+            if ((size + 1) * 2 > table.length) {
+                rehash(table.length * 2);
+            }
+            int entry;
+            if (freeCount > 0) {
+                entry = freeIds[--freeCount];
+            } else {
+                entry = allocated++;
+                int capacity = masks.length / words;
+                if (entry >= capacity) {
+                    digests = Arrays.copyOf(digests, capacity * 2 * DIGEST_WORDS);
+                    masks = Arrays.copyOf(masks, capacity * 2 * words);
+                }
+            }
+            System.arraycopy(digest, 0, digests, entry * DIGEST_WORDS, DIGEST_WORDS);
+            place(entry);
+            size++;
+            return entry;
+        }
+
+        // The entry's mask must already be empty.
+        void delete(int entry) {
+            int mask = table.length - 1;
+            int hole = slotOf(digests[entry * DIGEST_WORDS], mask);
+            while (table[hole] != entry + 1) {
+                hole = (hole + 1) & mask;
+            }
+            // Shift later entries of the probe run back so lookups never stop early.
+            for (int next = (hole + 1) & mask; table[next] != 0; next = (next + 1) & mask) {
+                int home = slotOf(digests[(table[next] - 1) * DIGEST_WORDS], mask);
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    table[hole] = table[next];
+                    hole = next;
+                }
+            }
+            table[hole] = 0;
+            if (freeCount == freeIds.length) {
+                freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+            }
+            freeIds[freeCount++] = entry;
+            size--;
+        }
+
+        boolean has(int entry, int id) {
+            int word = id >>> 6;
+            return word < words && (masks[entry * words + word] & (1L << id)) != 0;
+        }
+
+        void set(int entry, int id) {
+            if ((id >>> 6) >= words) {
+                widen((id >>> 6) + 1);
+            }
+            masks[entry * words + (id >>> 6)] |= 1L << id;
+        }
+
+        void clear(int entry, int id) {
+            masks[entry * words + (id >>> 6)] &= ~(1L << id);
+        }
+
+        long[] read(int entry) {
+            return Arrays.copyOfRange(masks, entry * words, entry * words + words);
+        }
+
+        String nameOf(int entry) {
+            StringBuilder name = new StringBuilder(DIGEST_PREFIX.length() + DIGEST_HEX).append(DIGEST_PREFIX);
+            for (int w = 0; w < DIGEST_WORDS; w++) {
+                long word = digests[entry * DIGEST_WORDS + w];
+                for (int shift = 60; shift >= 0; shift -= 4) {
+                    name.append(Character.forDigit((int) (word >>> shift) & 0xf, 16));
+                }
+            }
+            return name.toString();
+        }
+
+        private void place(int entry) {
+            int mask = table.length - 1;
+            int slot = slotOf(digests[entry * DIGEST_WORDS], mask);
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = entry + 1;
+        }
+
+        private void rehash(int slots) {
+            int[] old = table;
+            table = new int[slots];
+            for (int entry : old) {
+                if (entry != 0) {
+                    place(entry - 1);
+                }
+            }
+        }
+
+        private void widen(int wider) {
+            int capacity = masks.length / words;
+            long[] widened = new long[capacity * wider];
+            for (int e = 0; e < capacity; e++) {
+                System.arraycopy(masks, e * words, widened, e * wider, words);
+            }
+            masks = widened;
+            words = wider;
+        }
+
+        // Digests are uniformly distributed, so the low bits of the first word will do.
+        private static int slotOf(long first, int mask) {
+            return (int) (first ^ (first >>> 32)) & mask;
+        }
+    }
+
+    // One server's side of the index. Guarded by its own monitor.
+    private static final class ServerChunks {
+        final int id;
+        final Map<String, BitSet> files = new HashMap<>(); // file key -> dense chunk indexes
+        final Set<String> others = new HashSet<>();
+        final BitSet digests = new BitSet(); // entry ids in digestChunks
+        int count;
+        volatile boolean released;
+
+        ServerChunks(int id) {
+            this.id = id;
+        }
+    }
+
+    // Returns true if the location is new.
+    public boolean add(String chunkName, String serverName) {
+        int index = chunkIndexOf(chunkName);
+        long[] digest = index < 0 ? digestOf(chunkName) : null;
+        while (true) {
+            ServerChunks server = intern(serverName);
+            Boolean added = digest != null ? addDigest(digest, server)
+                    : index < 0 ? addOther(chunkName, server) : addIndexed(fileKeyOf(chunkName), index, chunkName, server);
+            if (added != null) {
+                return added;
+            }
+            // The server or file entry was dropped under us; take the current one.
+        }
+    }
+
+    private Boolean addDigest(long[] digest, ServerChunks server) {
+        synchronized (digestChunks) {
+            synchronized (server) {
+                if (server.released) {
+                    return null;
+                }
+                int entry = digestChunks.find(digest);
+                if (entry >= 0 && digestChunks.has(entry, server.id)) {
+                    return false;
+                }
+                if (entry < 0) {
+                    entry = digestChunks.insert(digest);
+                    locatedChunks.incrementAndGet();
+                }
+                digestChunks.set(entry, server.id);
+                server.digests.set(entry);
+                server.count++;
+                return true;
+            }
+        }
+    }
+
+    private Boolean addOther(String chunkName, ServerChunks server) {
+        Boolean[] added = new Boolean[1];
+        otherChunks.compute(chunkName, (k, old) -> {
+            synchronized (server) {
+                if (server.released) {
+                    return old;
+                }
+                long[] mask = old != null ? old : NOWHERE;
+                added[0] = !has(mask, server.id);
+                if (!added[0]) {
+                    return old;
+                }
+                if (old == null) {
+                    locatedChunks.incrementAndGet();
+                }
+                server.others.add(chunkName);
+                server.count++;
+                return with(mask, server.id);
+            }
+        });
+        return added[0];
+    }
+
+    // chunkName may be null; it is only built if the chunk is kept in the map.
+    private Boolean addIndexed(String fileKey, int index, String chunkName, ServerChunks server) {
+        FileSlots file = files.computeIfAbsent(fileKey, k -> new FileSlots());
+        synchronized (file) {
+            if (file.retired) {
+                return null;
+            }
+            synchronized (server) {
+                if (server.released) {
+                    return null;
+                }
+                Slots slots = file.slots;
+                if (chunkName == null && (file.sparse > 0 || index >= slots.chunks() + MAX_DENSE_GROWTH)) {
+                    chunkName = fileKey + CHUNK_MARKER + index;
+                }
+                long[] sparse = file.sparse > 0 ? otherChunks.get(chunkName) : null;
+                if (sparse == null && index < slots.chunks() + MAX_DENSE_GROWTH) {
+                    int word = server.id >>> 6;
+                    if (index >= slots.chunks() || word >= slots.words) {
+                        slots = grow(file, slots, index, word);
+                    }
+                    int at = index * slots.words + word;
+                    long old = slots.masks.get(at);
+                    long bit = 1L << server.id;
+                    if ((old & bit) != 0) {
+                        return false;
+                    }
+                    if (isEmpty(slots.read(index))) {
+                        file.located++;
+                        locatedChunks.incrementAndGet();
+                    }
+                    slots.masks.set(at, old | bit);
+                    server.files.computeIfAbsent(fileKey, k -> new BitSet()).set(index);
+                } else {
+                    long[] mask = sparse != null ? sparse : NOWHERE;
+                    if (has(mask, server.id)) {
+                        return false;
+                    }
+                    if (sparse == null) {
+                        file.located++;
+                        file.sparse++;
+                        locatedChunks.incrementAndGet();
+                    }
+                    otherChunks.put(chunkName, with(mask, server.id));
+                    server.others.add(chunkName);
+                }
+                server.count++;
+                return true;
+            }
+        }
+    }
+
+    // Returns true if the location was known.
+    public boolean remove(String chunkName, String serverName) {
+        ServerChunks server = servers.get(serverName);
+        if (server == null) {
+            return false;
+        }
+        int index = chunkIndexOf(chunkName);
+        long[] digest = index < 0 ? digestOf(chunkName) : null;
+        if (digest != null) {
+            synchronized (digestChunks) {
+                synchronized (server) {
+                    int entry = digestChunks.find(digest);
+                    if (server.released || entry < 0 || !digestChunks.has(entry, server.id)) {
+                        return false;
+                    }
+                    digestChunks.clear(entry, server.id);
+                    server.digests.clear(entry);
+                    server.count--;
+                    if (isEmpty(digestChunks.read(entry))) {
+                        digestChunks.delete(entry);
+                        locatedChunks.decrementAndGet();
+                    }
+                    return true;
+                }
+            }
+        }
+        if (index < 0) {
+            boolean[] removed = new boolean[1];
+            otherChunks.computeIfPresent(chunkName, (k, old) -> {
+                synchronized (server) {
+                    if (server.released || !has(old, server.id)) {
+                        return old;
+                    }
+                    removed[0] = true;
+                    server.others.remove(chunkName);
+                    server.count--;
+                    long[] updated = without(old, server.id);
+                    if (isEmpty(updated)) {
+                        locatedChunks.decrementAndGet();
+                        return null;
+                    }
+                    return updated;
+                }
+            });
+            return removed[0];
+        }
+        String fileKey = fileKeyOf(chunkName);
+        FileSlots file = files.get(fileKey);
+        if (file == null) {
+            return false;
+        }
+        synchronized (file) {
+            if (file.retired) {
+                return false;
+            }
+            synchronized (server) {
+                if (server.released) {
+                    return false;
+                }
+                long[] sparse = file.sparse > 0 ? otherChunks.get(chunkName) : null;
+                if (sparse != null) {
+                    if (!has(sparse, server.id)) {
+                        return false;
+                    }
+                    long[] updated = without(sparse, server.id);
+                    if (isEmpty(updated)) {
+                        otherChunks.remove(chunkName);
+                        file.sparse--;
+                        file.located--;
+                        locatedChunks.decrementAndGet();
+                    } else {
+                        otherChunks.put(chunkName, updated);
+                    }
+                    server.others.remove(chunkName);
+                } else {
+                    Slots slots = file.slots;
+                    int word = server.id >>> 6;
+                    if (index >= slots.chunks() || word >= slots.words) {
+                        return false;
+                    }
+                    int at = index * slots.words + word;
+                    long old = slots.masks.get(at);
+                    long bit = 1L << server.id;
+                    if ((old & bit) == 0) {
+                        return false;
+                    }
+                    slots.masks.set(at, old & ~bit);
+                    if (isEmpty(slots.read(index))) {
+                        file.located--;
+                        locatedChunks.decrementAndGet();
+                    }
+                    BitSet held = server.files.get(fileKey);
+                    held.clear(index);
+                    if (held.isEmpty()) {
+                        server.files.remove(fileKey);
+                    }
+                }
+                server.count--;
+            }
+            if (file.located == 0) {
+                // Every chunk of a deleted file has been reclaimed.
+                file.retired = true;
+                files.remove(fileKey, file);
+            }
+            return true;
+        }
+    }
+
+    public boolean contains(String chunkName, String serverName) {
+        ServerChunks server = servers.get(serverName);
+        return server != null && has(maskOf(chunkName), server.id) && !server.released;
+    }
+
+    // Servers holding the chunk, in server-id order.
+    public List<String> locations(String chunkName) {
+        long[] mask = maskOf(chunkName);
+        if (isEmpty(mask)) {
+            return Collections.emptyList();
+        }
+        String[] names = serverNames;
+        List<String> locations = new ArrayList<>(2);
+        for (int w = 0; w < mask.length; w++) {
+            long bits = mask[w];
+            while (bits != 0) {
+                int id = (w << 6) + Long.numberOfTrailingZeros(bits);
+                if (id < names.length && names[id] != null) {
+                    locations.add(names[id]);
+                }
+                bits &= bits - 1;
+            }
+        }
+        return locations;
+    }
+
+    public List<String> chunksOn(String serverName) {
+        ServerChunks server = servers.get(serverName);
+        if (server == null) {
+            return Collections.emptyList();
+        }
+        synchronized (digestChunks) {
+            synchronized (server) {
+                List<String> chunks = new ArrayList<>(server.count);
+                for (Map.Entry<String, BitSet> entry : server.files.entrySet()) {
+                    BitSet held = entry.getValue();
+                    for (int i = held.nextSetBit(0); i >= 0; i = held.nextSetBit(i + 1)) {
+                        chunks.add(entry.getKey() + CHUNK_MARKER + i);
+                    }
+                }
+                chunks.addAll(server.others);
+                for (int e = server.digests.nextSetBit(0); e >= 0; e = server.digests.nextSetBit(e + 1)) {
+                    chunks.add(digestChunks.nameOf(e));
+                }
+                return chunks;
+            }
+        }
+    }
+
+    public int chunkCount(String serverName) {
+        ServerChunks server = servers.get(serverName);
+        if (server == null) {
+            return 0;
+        }
+        synchronized (server) {
+            return server.count;
+        }
+    }
+
+    public long size() {
+        return locatedChunks.get();
+    }
+
+    // Frees the server's id for reuse once it holds no chunks, e.g. after a dead server's
+    // copies have all been re-replicated. It gets a new id if it ever reports chunks again.
+    // Returns true if the id was released.
+    public boolean releaseServer(String serverName) {
+        ServerChunks server = servers.get(serverName);
+        if (server == null) {
+            return false;
+        }
+        synchronized (this) {
+            synchronized (server) {
+                if (server.released || server.count > 0) {
+                    return false;
+                }
+                server.released = true;
+            }
+            servers.remove(serverName, server);
+            String[] names = serverNames.clone();
+            names[server.id] = null;
+            serverNames = names;
+            return true;
+        }
+    }
+
+    private long[] maskOf(String chunkName) {
+        int index = chunkIndexOf(chunkName);
+        if (index < 0) {
+            long[] digest = digestOf(chunkName);
+            if (digest == null) {
+                return otherChunks.getOrDefault(chunkName, NOWHERE);
+            }
+            synchronized (digestChunks) {
+                int entry = digestChunks.find(digest);
+                return entry < 0 ? NOWHERE : digestChunks.read(entry);
+            }
+        }
+        FileSlots file = files.get(fileKeyOf(chunkName));
+        if (file == null) {
+            return NOWHERE;
+        }
+        Slots slots = file.slots;
+        if (index < slots.chunks()) {
+            long[] mask = slots.read(index);
+            if (!isEmpty(mask)) {
+                return mask;
+            }
+        }
+        return file.sparse > 0 ? otherChunks.getOrDefault(chunkName, NOWHERE) : NOWHERE;
+    }
+
+    // Interns a server name, reusing the lowest released id.
+    private ServerChunks intern(String serverName) {
+        ServerChunks server = servers.get(serverName);
+        if (server != null) {
+            return server;
+        }
+        synchronized (this) {
+            server = servers.get(serverName);
+            if (server == null) {
+                String[] names = serverNames;
+                int id = 0;
+                while (id < names.length && names[id] != null) {
+                    id++;
+                }
+                String[] updated = id < names.length ? names.clone() : Arrays.copyOf(names, id + 1);
+                updated[id] = serverName;
+                serverNames = updated;
+                server = new ServerChunks(id);
+                servers.put(serverName, server);
+            }
+            return server;
+        }
+    }
+
+    // Called with the file's monitor held. Doubles the chunk count when it has to grow, and
+    // widens every mask when a server id outgrows the current words.
+    private static Slots grow(FileSlots file, Slots slots, int index, int word) {
+        int chunks = index < slots.chunks() ? slots.chunks() : Math.max(index + 1, slots.chunks() * 2);
+        int words = Math.max(word + 1, slots.words);
+        Slots grown = new Slots(chunks, words);
+        for (int i = 0; i < slots.chunks(); i++) {
+            for (int w = 0; w < slots.words; w++) {
+                grown.masks.set(i * words + w, slots.masks.get(i * slots.words + w));
+            }
+        }
+        file.slots = grown;
+        return grown;
+    }
+
+    private static boolean has(long[] mask, int id) {
+        int word = id >>> 6;
+        return word < mask.length && (mask[word] & (1L << id)) != 0;
+    }
+
+    private static long[] with(long[] mask, int id) {
+        long[] updated = Arrays.copyOf(mask, Math.max(mask.length, (id >>> 6) + 1));
+        updated[id >>> 6] |= 1L << id;
+        return updated;
+    }
+
+    private static long[] without(long[] mask, int id) {
+        long[] updated = mask.clone();
+        updated[id >>> 6] &= ~(1L << id);
+        return updated;
+    }
+
+    private static boolean isEmpty(long[] mask) {
+        for (long word : mask) {
+            if (word != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Index of a "<file>_chunk_<i>" name, or -1 if the name has another shape. Only canonical
+    // indexes count, so the name can be rebuilt exactly from (file, i).
+    private static int chunkIndexOf(String chunkName) {
+        int marker = chunkName.lastIndexOf(CHUNK_MARKER);
+        if (marker < 0) {
+            return -1;
+        }
+        String suffix = chunkName.substring(marker + CHUNK_MARKER.length());
+        if (suffix.isEmpty() || suffix.length() > 9 || (suffix.length() > 1 && suffix.charAt(0) == '0')) {
+            return -1;
+        }
+        for (int i = 0; i < suffix.length(); i++) {
+            char c = suffix.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+        }
+        return Integer.parseInt(suffix);
+    }
+
+    private static String fileKeyOf(String chunkName) {
+        return chunkName.substring(0, chunkName.lastIndexOf(CHUNK_MARKER));
+    }
+
+    // The digest of a "sha256-<hex>" name as four words, or null if the name has another
+    // shape. Only lowercase hex counts, so the name can be rebuilt exactly from the digest.
+    private static long[] digestOf(String chunkName) {
+        if (chunkName.length() != DIGEST_PREFIX.length() + DIGEST_HEX || !chunkName.startsWith(DIGEST_PREFIX)) {
+            return null;
+        }
+        long[] digest = new long[DigestChunks.DIGEST_WORDS];
+        for (int i = 0; i < DIGEST_HEX; i++) {
+            char c = chunkName.charAt(DIGEST_PREFIX.length() + i);
+            int nibble = c >= '0' && c <= '9' ? c - '0' : c >= 'a' && c <= 'f' ? c - 'a' + 10 : -1;
+            if (nibble < 0) {
+                return null;
+            }
+            digest[i >>> 4] = (digest[i >>> 4] << 4) | nibble;
+        }
+        return digest;
+    }
+
+    // Stored as plain (chunk, server) pairs per server, so ids and array layout are rebuilt
+    // on load and released ids don't leave holes behind.
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        List<Map.Entry<String, ServerChunks>> entries = new ArrayList<>(servers.entrySet());
+        out.writeInt(entries.size());
+        for (Map.Entry<String, ServerChunks> entry : entries) {
+            ServerChunks server = entry.getValue();
+            synchronized (digestChunks) {
+                synchronized (server) {
+                    out.writeUTF(entry.getKey());
+                    out.writeInt(server.files.size());
+                    for (Map.Entry<String, BitSet> held : server.files.entrySet()) {
+                        out.writeUTF(held.getKey());
+                        long[] bits = held.getValue().toLongArray();
+                        out.writeInt(bits.length);
+                        for (long word : bits) {
+                            out.writeLong(word);
+                        }
+                    }
+                    out.writeInt(server.others.size() + server.digests.cardinality());
+                    for (String chunkName : server.others) {
+                        out.writeUTF(chunkName);
+                    }
+                    for (int e = server.digests.nextSetBit(0); e >= 0; e = server.digests.nextSetBit(e + 1)) {
+                        out.writeUTF(digestChunks.nameOf(e));
+                    }
+                }
+            }
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        servers = new ConcurrentHashMap<>();
+        serverNames = new String[0];
+        files = new ConcurrentHashMap<>();
+        otherChunks = new ConcurrentHashMap<>();
+        digestChunks = new DigestChunks();
+        locatedChunks = new AtomicLong();
+        int serverCount = in.readInt();
+        for (int s = 0; s < serverCount; s++) {
+            String serverName = in.readUTF();
+            intern(serverName);
+            int fileCount = in.readInt();
+            for (int f = 0; f < fileCount; f++) {
+                String fileKey = in.readUTF();
+                long[] bits = new long[in.readInt()];
+                for (int i = 0; i < bits.length; i++) {
+                    bits[i] = in.readLong();
+                }
+                BitSet held = BitSet.valueOf(bits);
+                for (int i = held.nextSetBit(0); i >= 0; i = held.nextSetBit(i + 1)) {
+                    addIndexed(fileKey, i, null, servers.get(serverName));
+                }
+            }
+            int otherCount = in.readInt();
+            for (int i = 0; i < otherCount; i++) {
+                add(in.readUTF(), serverName);
+            }
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package myrmi;
+
+import java.rmi.RemoteException;
+
+// Thrown when an upload reports or commits a chunk copy that garbage collection is deleting
+// or has deleted. The copy can't be used, but the upload can: sending the same file again
+// after a short wait stores the chunk anew.
+public class ChunkReclaimedException extends RemoteException {
+    private static final long serialVersionUID = 1L;
+
+    public ChunkReclaimedException(String message) {
+        super(message);
+    }
+}
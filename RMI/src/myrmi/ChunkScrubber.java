@@ -0,0 +1,138 @@
+package myrmi;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+// Background pass over a storage server's chunks that re-reads each one and checks it
+// against its stored checksum, to find disk corruption before a client trips over it.
+// Reads are paced to bytesPerSecond so scrubbing doesn't compete with client traffic, and
+// a full pass is followed by a pause. Chunks written before checksums were kept get one
+// recorded on their first pass.
+public class ChunkScrubber {
+    public static final long DEFAULT_BYTES_PER_SECOND = 8L * 1024 * 1024;
+    public static final long DEFAULT_PASS_INTERVAL_MS = TimeUnit.HOURS.toMillis(6);
+
+    private final String serverId;
+    private final ChunkStore chunkStore;
+    private final long bytesPerSecond;
+    private final long passIntervalMs;
+    private final Consumer<String> onCorrupt;
+    private volatile boolean running = true;
+
+    public ChunkScrubber(String serverId, ChunkStore chunkStore, long bytesPerSecond, long passIntervalMs, Consumer<String> onCorrupt) {
+        this.serverId = serverId;
+        this.chunkStore = chunkStore;
+        this.bytesPerSecond = bytesPerSecond;
+        this.passIntervalMs = passIntervalMs;
+        this.onCorrupt = onCorrupt;
+    }
+
+    public void start() {
+        Thread scrubber = new Thread(this::run, serverId + "-scrubber");
+        scrubber.setDaemon(true);
+        scrubber.setPriority(Thread.MIN_PRIORITY);
+        scrubber.start();
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                int corrupt = scrubPass();
+                System.out.println(serverId + ": Scrub pass finished, " + corrupt + " corrupt chunks found.");
+                TimeUnit.MILLISECONDS.sleep(passIntervalMs);
+            }
+        } catch (InterruptedException | InterruptedIOException e) {
+            // Shutting down.
+        }
+    }
+
+    // Returns the number of corrupt chunks found.
+    int scrubPass() throws InterruptedIOException {
+        List<String> chunkIds;
+        try {
+            chunkIds = new ArrayList<>(chunkStore.chunkIds());
+        } catch (IOException e) {
+            System.err.println(serverId + ": Error listing chunks to scrub: " + e.getMessage());
+            return 0;
+        }
+        Collections.sort(chunkIds);
+        int corrupt = 0;
+        for (String chunkId : chunkIds) {
+            if (!running) {
+                break;
+            }
+            try {
+                if (!verify(chunkId)) {
+                    corrupt++;
+                    onCorrupt.accept(chunkId);
+                }
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (IOException e) {
+                System.err.println(serverId + ": Error scrubbing chunk " + chunkId + ": " + e.getMessage());
+            }
+        }
+        return corrupt;
+    }
+
+    // A chunk rewritten while it was being read can look corrupt, so a mismatch only counts
+    // if a second, unpaced read of the current copy agrees. Chunks deleted since the listing
+    // pass.
+    private boolean verify(String chunkId) throws IOException {
+        long expected;
+        long actual;
+        try (ChunkStore.ChunkView chunk = chunkStore.open(chunkId)) {
+            if (chunk == null) {
+                return true;
+            }
+            expected = chunk.checksum();
+            actual = checksum(chunkId, chunk, bytesPerSecond);
+        }
+        if (actual == expected) {
+            return true;
+        }
+        try (ChunkStore.ChunkView chunk = chunkStore.open(chunkId)) {
+            return chunk == null || checksum(chunkId, chunk, 0) == chunk.checksum();
+        }
+    }
+
+    private static long checksum(String chunkId, ChunkStore.ChunkView chunk, long bytesPerSecond) throws IOException {
+        CRC32C crc = new CRC32C();
+        ByteBuffer slice = ByteBuffer.allocateDirect((int) ChunkTransferServer.SLICE_SIZE);
+        long start = System.nanoTime();
+        long read = 0;
+        while (true) {
+            slice.clear();
+            int n = chunk.read(slice, read);
+            if (n < 0) {
+                break;
+            }
+            slice.flip();
+            crc.update(slice);
+            read += n;
+            if (bytesPerSecond > 0) {
+                long aheadNanos = read * 1_000_000_000L / bytesPerSecond - (System.nanoTime() - start);
+                if (aheadNanos > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(aheadNanos);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while scrubbing " + chunkId);
+                    }
+                }
+            }
+        }
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,227 @@
+package myrmi;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Where a storage server keeps its chunks: FileChunkStore keeps one file per chunk and
+// SegmentChunkStore packs them into append-only segment files. Reads go through a
+// ChunkView, a window onto an open FileChannel, so both serve data with positional I/O.
+//
+// Writes are staged in a Pending and published by commit(), which returns once the chunk
+// is durable; until then readers keep seeing the previous version, if any. In group-commit
+// mode a single thread publishes everything committed since its last round in one batch,
+// so concurrent uploads share the disk flushes instead of paying for their own.
+public abstract class ChunkStore {
+    static final String QUARANTINE_DIRECTORY = ".corrupt";
+
+    // A chunk being written. Fill it with write(), then commit or abort it.
+    public abstract static class Pending {
+        final String chunkId;
+        long checksum;
+        // Set by whichever thread publishes the chunk, read by the one committing it.
+        private volatile boolean done;
+        private volatile IOException error;
+
+        protected Pending(String chunkId) {
+            this.chunkId = chunkId;
+        }
+
+        // Writes all of src at position within the chunk.
+        public abstract void write(ByteBuffer src, long position) throws IOException;
+    }
+
+    // length bytes of channel starting at offset, plus the chunk's checksum. Close it when done.
+    public static class ChunkView implements Closeable {
+        private final FileChannel channel;
+        private final long offset;
+        private final long length;
+        private final long checksum;
+        private final Closeable onClose;
+
+        ChunkView(FileChannel channel, long offset, long length, long checksum, Closeable onClose) {
+            this.channel = channel;
+            this.offset = offset;
+            this.length = length;
+            this.checksum = checksum;
+            this.onClose = onClose;
+        }
+
+        public long length() {
+            return length;
+        }
+
+        public long checksum() {
+            return checksum;
+        }
+
+        // Reads from position within the chunk into dst; -1 at the end of the chunk.
+        public int read(ByteBuffer dst, long position) throws IOException {
+            if (position >= length) {
+                return -1;
+            }
+            ByteBuffer window = dst;
+            if (dst.remaining() > length - position) {
+                window = dst.duplicate();
+                window.limit(window.position() + (int) (length - position));
+            }
+            int n = channel.read(window, offset + position);
+            if (window != dst && n > 0) {
+                dst.position(dst.position() + n);
+            }
+            return n;
+        }
+
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            return channel.transferTo(offset + position, Math.min(count, length - position), target);
+        }
+
+        @Override
+        public void close() throws IOException {
+            onClose.close();
+        }
+    }
+
+    protected final String serverId;
+    protected final Path directory;
+    private final boolean groupCommit;
+    private final List<Pending> queue = new ArrayList<>();
+
+    protected ChunkStore(String serverId, Path directory, boolean groupCommit) {
+        this.serverId = serverId;
+        this.directory = directory;
+        this.groupCommit = groupCommit;
+    }
+
+    // Subclasses call this once they are ready to publish.
+    protected void startCommitter() {
+        if (groupCommit) {
+            Thread committer = new Thread(this::commitLoop, serverId + "-chunk-committer");
+            committer.setDaemon(true);
+            committer.start();
+        }
+    }
+
+    // size is the chunk's length, as announced by the sender.
+    public abstract Pending create(String chunkId, long size) throws IOException;
+
+    public abstract void abort(Pending pending);
+
+    // Makes every chunk in the batch durable and visible, or throws.
+    protected abstract void publish(List<Pending> batch) throws IOException;
+
+    // The stored chunk, or null if there is none.
+    public abstract ChunkView open(String chunkId) throws IOException;
+
+    public abstract List<String> chunkIds() throws IOException;
+
+    public abstract void delete(String chunkId) throws IOException;
+
+    // Deletes several chunks; stores that have to sync each deletion override this to share one.
+    public void delete(List<String> chunkIds) throws IOException {
+        for (String chunkId : chunkIds) {
+            delete(chunkId);
+        }
+    }
+
+    // Publishes the chunk with the given checksum, blocking until it is durable.
+    public void commit(Pending pending, long checksum) throws IOException {
+        pending.checksum = checksum;
+        if (!groupCommit) {
+            publishBatch(Collections.singletonList(pending));
+        } else {
+            synchronized (this) {
+                queue.add(pending);
+                notifyAll();
+                while (!pending.done) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while committing chunk " + pending.chunkId);
+                    }
+                }
+            }
+        }
+        if (pending.error != null) {
+            throw pending.error;
+        }
+    }
+
+    // Convenience for callers that have the whole chunk in memory.
+    public void write(String chunkId, ByteBuffer data, long checksum) throws IOException {
+        Pending pending = create(chunkId, data.remaining());
+        try {
+            pending.write(data, 0);
+        } catch (IOException e) {
+            abort(pending);
+            throw e;
+        }
+        commit(pending, checksum);
+    }
+
+    // Copies a damaged chunk to .corrupt/ for inspection and removes it from the store.
+    public void quarantine(String chunkId) throws IOException {
+        Path quarantined = directory.resolve(QUARANTINE_DIRECTORY).resolve(chunkId);
+        Files.createDirectories(quarantined.getParent());
+        try (ChunkView view = open(chunkId)) {
+            if (view == null) {
+                return;
+            }
+            try (FileChannel out = FileChannel.open(quarantined, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                long copied = 0;
+                while (copied < view.length()) {
+                    copied += view.transferTo(copied, view.length() - copied, out);
+                }
+            }
+        }
+        delete(chunkId);
+    }
+
+    private void commitLoop() {
+        while (true) {
+            List<Pending> batch;
+            synchronized (this) {
+                while (queue.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                batch = new ArrayList<>(queue);
+                queue.clear();
+            }
+            publishBatch(batch);
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    private void publishBatch(List<Pending> batch) {
+        try {
+            publish(batch);
+        } catch (IOException e) {
+            System.err.println(serverId + ": Error committing " + batch.size() + " chunks: " + e.getMessage());
+            for (Pending pending : batch) {
+                abort(pending);
+                pending.error = e;
+            }
+        } finally {
+            for (Pending pending : batch) {
+                pending.done = true;
+            }
+        }
+    }
+}
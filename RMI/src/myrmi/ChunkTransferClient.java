@@ -0,0 +1,150 @@
+package myrmi;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Client half of the ChunkTransferServer protocol. One connection per chunk keeps the
+// protocol stateless; chunk bodies go straight between the socket and a buffer or file.
+public class ChunkTransferClient {
+
+    private ChunkTransferClient() {
+    }
+
+    // Streams a chunk into target at position without staging it on the heap. Returns the chunk length.
+    public static long download(String host, int port, String chunkId, FileChannel target, long position) throws IOException {
+        try (SocketChannel socket = SocketChannel.open(new InetSocketAddress(host, port))) {
+            sendHeader(socket, ChunkTransferServer.OP_GET, chunkId);
+            long size = new DataInputStream(Channels.newInputStream(socket)).readLong();
+            if (size < 0) {
+                throw new IOException("Chunk " + chunkId + " not found on transfer channel " + host + ":" + port);
+            }
+            long received = 0;
+            while (received < size) {
+                long n = target.transferFrom(socket, position + received, Math.min(ChunkTransferServer.SLICE_SIZE, size - received));
+                if (n <= 0) {
+                    throw new IOException("Connection closed after " + received + " of " + size + " bytes of " + chunkId);
+                }
+                received += n;
+            }
+            return size;
+        }
+    }
+
+    // Reads a whole chunk into a new heap buffer, handing the open connection to onOpen so
+    // another thread can abort the transfer by closing it.
+    public static ByteBuffer download(String host, int port, String chunkId, Consumer<Closeable> onOpen) throws IOException {
+        try (SocketChannel socket = SocketChannel.open(new InetSocketAddress(host, port))) {
+            onOpen.accept(socket);
+            sendHeader(socket, ChunkTransferServer.OP_GET, chunkId);
+            long size = new DataInputStream(Channels.newInputStream(socket)).readLong();
+            if (size < 0) {
+                throw new IOException("Chunk " + chunkId + " not found on transfer channel " + host + ":" + port);
+            }
+            ByteBuffer data = ByteBuffer.allocate(Math.toIntExact(size));
+            while (data.hasRemaining()) {
+                if (socket.read(data) < 0) {
+                    throw new IOException("Connection closed after " + data.position() + " of " + size + " bytes of " + chunkId);
+                }
+            }
+            data.flip();
+            return data;
+        }
+    }
+
+    // Reads the chunk's bytes from offset into dst, up to dst.remaining() of them. Returns the
+    // number read, which is short only when the chunk ends first.
+    public static int read(String host, int port, String chunkId, long offset, ByteBuffer dst) throws IOException {
+        try (SocketChannel socket = SocketChannel.open(new InetSocketAddress(host, port))) {
+            DataOutputStream out = sendHeader(socket, ChunkTransferServer.OP_READ, chunkId);
+            out.writeLong(offset);
+            out.writeInt(dst.remaining());
+            out.flush();
+            long size = new DataInputStream(Channels.newInputStream(socket)).readLong();
+            if (size < 0) {
+                throw new IOException("Chunk " + chunkId + " not found on transfer channel " + host + ":" + port);
+            }
+            ByteBuffer target = dst.duplicate();
+            target.limit(target.position() + (int) size);
+            while (target.hasRemaining()) {
+                if (socket.read(target) < 0) {
+                    throw new IOException("Connection closed after " + (target.position() - dst.position()) + " of " + size + " bytes of " + chunkId);
+                }
+            }
+            dst.position(target.position());
+            return (int) size;
+        }
+    }
+
+    public static void upload(String host, int port, String chunkId, ByteBuffer data) throws IOException {
+        upload(host, port, chunkId, data, ChunkChecksums.NONE);
+    }
+
+    // The server refuses the chunk unless it arrives with the given CRC32C (NONE skips the check).
+    public static void upload(String host, int port, String chunkId, ByteBuffer data, long checksum) throws IOException {
+        try (SocketChannel socket = SocketChannel.open(new InetSocketAddress(host, port))) {
+            DataOutputStream out = sendHeader(socket, ChunkTransferServer.OP_PUT, chunkId);
+            out.writeLong(data.remaining());
+            out.writeLong(checksum);
+            out.flush();
+            while (data.hasRemaining()) {
+                socket.write(data);
+            }
+            byte status = new DataInputStream(Channels.newInputStream(socket)).readByte();
+            if (status != ChunkTransferServer.STATUS_OK) {
+                throw new IOException("Storage server rejected chunk " + chunkId);
+            }
+        }
+    }
+
+    // Streams a stored chunk, with its checksum, to another server, pacing the slices so the
+    // copy averages at most bytesPerSecond (0 = unlimited). Used for background repairs that
+    // must not crowd out clients.
+    public static void upload(String host, int port, String chunkId, ChunkStore.ChunkView source, long bytesPerSecond) throws IOException {
+        try (SocketChannel socket = SocketChannel.open(new InetSocketAddress(host, port))) {
+            DataOutputStream out = sendHeader(socket, ChunkTransferServer.OP_PUT, chunkId);
+            long size = source.length();
+            long checksum = source.checksum();
+            out.writeLong(size);
+            out.writeLong(checksum);
+            out.flush();
+            long start = System.nanoTime();
+            long sent = 0;
+            while (sent < size) {
+                sent += source.transferTo(sent, Math.min(ChunkTransferServer.SLICE_SIZE, size - sent), socket);
+                if (bytesPerSecond > 0) {
+                    long aheadNanos = sent * 1_000_000_000L / bytesPerSecond - (System.nanoTime() - start);
+                    if (aheadNanos > 0) {
+                        try {
+                            TimeUnit.NANOSECONDS.sleep(aheadNanos);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException("Interrupted while sending " + chunkId);
+                        }
+                    }
+                }
+            }
+            byte status = new DataInputStream(Channels.newInputStream(socket)).readByte();
+            if (status != ChunkTransferServer.STATUS_OK) {
+                throw new IOException("Storage server rejected chunk " + chunkId);
+            }
+        }
+    }
+
+    private static DataOutputStream sendHeader(SocketChannel socket, byte op, String chunkId) throws IOException {
+        DataOutputStream out = new DataOutputStream(Channels.newOutputStream(socket));
+        out.writeByte(op);
+        out.writeUTF(chunkId);
+        out.flush();
+        return out;
+    }
+}
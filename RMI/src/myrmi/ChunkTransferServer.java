@@ -0,0 +1,263 @@
+package myrmi;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32C;
+
+// Side channel for chunk data. RMI only tells the client which port to use; the bytes
+// themselves move between the socket and the chunk store in bounded slices, so a chunk
+// is never materialized on the storage server's heap. Hot chunks are served from the
+// off-heap HotChunkCache instead of the store.
+//
+// Request:  op (1 byte) | chunkId (modified UTF-8) | PUT:  length (8 bytes) | CRC32C (8 bytes, -1 if none) | data
+//                                                 | READ: offset (8 bytes) | length (4 bytes)
+// Response: GET, READ -> length (8 bytes, -1 if missing) | data
+//           PUT       -> status (1 byte)
+// READ returns the bytes of the chunk from offset on, at most length of them. PUT fails if
+// the data doesn't match the checksum sent with it.
+public class ChunkTransferServer {
+    static final byte OP_GET = 'G';
+    static final byte OP_PUT = 'P';
+    static final byte OP_READ = 'R';
+    static final byte STATUS_OK = 0;
+    static final byte STATUS_ERROR = 1;
+    static final long SLICE_SIZE = 256 * 1024;
+    private static final ByteBuffer FAILED = ByteBuffer.allocate(0);
+
+    private final String serverId;
+    private final ServerSocketChannel serverChannel;
+    private final ExecutorService handlers;
+    private final AtomicInteger inFlightRequests;
+    private final HotChunkCache hotChunks;
+    private final ChunkStore chunkStore;
+
+    public ChunkTransferServer(String serverId, ChunkStore chunkStore, int port, AtomicInteger inFlightRequests,
+            HotChunkCache hotChunks) throws IOException {
+        this.serverId = serverId;
+        this.chunkStore = chunkStore;
+        this.inFlightRequests = inFlightRequests;
+        this.hotChunks = hotChunks;
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(new InetSocketAddress(port));
+        this.handlers = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, serverId + "-transfer");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public void start() {
+        Thread acceptor = new Thread(this::acceptLoop, serverId + "-transfer-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        System.out.println(serverId + ": Chunk transfer channel listening on port " + getPort());
+    }
+
+    public void stop() {
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            System.err.println(serverId + ": Error closing transfer channel: " + e.getMessage());
+        }
+        handlers.shutdownNow();
+    }
+
+    private void acceptLoop() {
+        while (serverChannel.isOpen()) {
+            try {
+                SocketChannel socket = serverChannel.accept();
+                handlers.submit(() -> handle(socket));
+            } catch (IOException e) {
+                if (serverChannel.isOpen()) {
+                    System.err.println(serverId + ": Error accepting transfer connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void handle(SocketChannel socket) {
+        inFlightRequests.incrementAndGet();
+        try (SocketChannel s = socket) {
+            DataInputStream in = new DataInputStream(Channels.newInputStream(s));
+            byte op = in.readByte();
+            String chunkId = in.readUTF();
+            if (op == OP_GET) {
+                sendChunk(s, chunkId);
+            } else if (op == OP_PUT) {
+                receiveChunk(s, in, chunkId);
+            } else if (op == OP_READ) {
+                sendRange(s, chunkId, in.readLong(), in.readInt());
+            } else {
+                System.err.println(serverId + ": Unknown transfer op " + op);
+            }
+        } catch (IOException e) {
+            System.err.println(serverId + ": Transfer connection failed: " + e.getMessage());
+        } finally {
+            inFlightRequests.decrementAndGet();
+        }
+    }
+
+    private void sendChunk(SocketChannel socket, String chunkId) throws IOException {
+        try (ChunkStore.ChunkView chunk = validChunkId(chunkId) ? chunkStore.open(chunkId) : null) {
+            if (chunk == null) {
+                writeLong(socket, -1);
+                System.err.println(serverId + ": Requested chunk not found: " + chunkId);
+                return;
+            }
+            ByteBuffer cachedChunk = cachedChunk(socket, chunkId, chunk);
+            if (cachedChunk == FAILED) {
+                return;
+            }
+            if (cachedChunk != null) {
+                writeLong(socket, cachedChunk.remaining());
+                writeFully(socket, cachedChunk);
+                System.out.println(serverId + ": Streamed chunk " + chunkId + " from cache (" + cachedChunk.limit() + " bytes)");
+                return;
+            }
+            long size = chunk.length();
+            writeLong(socket, size);
+            long sent = 0;
+            while (sent < size) {
+                sent += chunk.transferTo(sent, Math.min(SLICE_SIZE, size - sent), socket);
+            }
+            System.out.println(serverId + ": Streamed chunk " + chunkId + " (" + size + " bytes)");
+        }
+    }
+
+    private void sendRange(SocketChannel socket, String chunkId, long offset, int length) throws IOException {
+        try (ChunkStore.ChunkView chunk = validChunkId(chunkId) && offset >= 0 && length >= 0 ? chunkStore.open(chunkId) : null) {
+            if (chunk == null) {
+                writeLong(socket, -1);
+                System.err.println(serverId + ": Invalid range request for chunk " + chunkId);
+                return;
+            }
+            ByteBuffer cachedChunk = cachedChunk(socket, chunkId, chunk);
+            if (cachedChunk == FAILED) {
+                return;
+            }
+            if (cachedChunk != null) {
+                int count = (int) Math.max(0, Math.min(length, cachedChunk.remaining() - offset));
+                writeLong(socket, count);
+                if (count > 0) {
+                    cachedChunk.position((int) offset).limit((int) offset + count);
+                    writeFully(socket, cachedChunk);
+                }
+                return;
+            }
+            long count = Math.max(0, Math.min(length, chunk.length() - offset));
+            writeLong(socket, count);
+            long sent = 0;
+            while (sent < count) {
+                sent += chunk.transferTo(offset + sent, Math.min(SLICE_SIZE, count - sent), socket);
+            }
+        }
+    }
+
+    // The checksum is computed as the slices go by, so verifying costs no extra pass over the data.
+    private void receiveChunk(SocketChannel socket, DataInputStream in, String chunkId) throws IOException {
+        long size = in.readLong();
+        long expected = in.readLong();
+        if (!validChunkId(chunkId) || size < 0) {
+            writeStatus(socket, STATUS_ERROR);
+            return;
+        }
+        ChunkStore.Pending pending;
+        try {
+            pending = chunkStore.create(chunkId, size);
+        } catch (IOException e) {
+            System.err.println(serverId + ": Refused chunk " + chunkId + ": " + e.getMessage());
+            writeStatus(socket, STATUS_ERROR);
+            return;
+        }
+        CRC32C crc = new CRC32C();
+        try {
+            ByteBuffer slice = ByteBuffer.allocateDirect((int) Math.min(SLICE_SIZE, Math.max(1, size)));
+            long received = 0;
+            while (received < size) {
+                slice.clear().limit((int) Math.min(slice.capacity(), size - received));
+                if (socket.read(slice) < 0) {
+                    throw new IOException("Connection closed after " + received + " of " + size + " bytes");
+                }
+                slice.flip();
+                crc.update(slice.duplicate());
+                int n = slice.remaining();
+                pending.write(slice, received);
+                received += n;
+            }
+            if (expected != ChunkChecksums.NONE && crc.getValue() != expected) {
+                throw ChunkChecksums.mismatch(chunkId, expected, crc.getValue());
+            }
+        } catch (IOException e) {
+            System.err.println(serverId + ": Error receiving chunk " + chunkId + ": " + e.getMessage());
+            chunkStore.abort(pending);
+            writeStatus(socket, STATUS_ERROR);
+            return;
+        }
+        // Only acknowledged once the chunk is durable and visible to readers.
+        try {
+            chunkStore.commit(pending, crc.getValue());
+        } catch (IOException e) {
+            System.err.println(serverId + ": Error storing chunk " + chunkId + ": " + e.getMessage());
+            writeStatus(socket, STATUS_ERROR);
+            return;
+        } finally {
+            hotChunks.invalidate(chunkId);
+        }
+        writeStatus(socket, STATUS_OK);
+        System.out.println(serverId + ": Received chunk " + chunkId + " (" + size + " bytes)");
+    }
+
+    // The hot copy of the chunk, null to stream it from the store, or FAILED if it couldn't be
+    // read (e.g. it failed its checksum), in which case the client has been told it's missing.
+    private ByteBuffer cachedChunk(SocketChannel socket, String chunkId, ChunkStore.ChunkView chunk) throws IOException {
+        try {
+            return hotChunks.get(chunkId, chunk);
+        } catch (IOException e) {
+            System.err.println(serverId + ": Error reading chunk " + chunkId + ": " + e.getMessage());
+            writeLong(socket, -1);
+            return FAILED;
+        }
+    }
+
+    // Chunk ids come straight off the wire, and the file store uses them as file names.
+    private boolean validChunkId(String chunkId) {
+        if (chunkId.isEmpty() || chunkId.contains("/") || chunkId.contains("\\") || chunkId.equals("..")) {
+            System.err.println(serverId + ": Rejected chunk id " + chunkId);
+            return false;
+        }
+        return true;
+    }
+
+    private static void writeLong(SocketChannel socket, long value) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(Long.BYTES).putLong(value);
+        buf.flip();
+        while (buf.hasRemaining()) {
+            socket.write(buf);
+        }
+    }
+
+    private static void writeFully(SocketChannel socket, ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            socket.write(data);
+        }
+    }
+
+    private static void writeStatus(SocketChannel socket, byte status) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(new byte[] { status });
+        while (buf.hasRemaining()) {
+            socket.write(buf);
+        }
+    }
+}
@@ -6,11 +6,12 @@ import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.File;
-import java.util.Collections;
-import java.util.List;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Vector; 
 
 public class ClientUI extends JFrame {
+    private static final int PAGE_SIZE = 200; // files fetched per listing call
 
     private FileTransferClient client;
 
@@ -20,9 +21,20 @@ public class ClientUI extends JFrame {
     private JLabel statusLabel;
     private JButton uploadButton;
     private JButton downloadButton;
+    private JButton deleteButton;
     private JButton refreshButton;
     private JTextField downloadPathField;
     private JButton browseDownloadPathButton;
+    private JTextField filterField;
+    private JScrollPane scrollPane;
+
+    // The list is filled a page at a time as it is scrolled. A refresh bumps listingGeneration
+    // so pages still in flight for the previous listing are dropped.
+    private final Map<String, FileListing.Entry> fileInfo = new HashMap<>();
+    private String listingPrefix = "";
+    private String nextCursor;
+    private boolean loadingPage;
+    private int listingGeneration;
 
     public ClientUI(String host, int port) {
         super("Distributed File Manager (RMI)");
@@ -56,11 +68,13 @@ public class ClientUI extends JFrame {
 
         uploadButton = new JButton("Upload File");
         downloadButton = new JButton("Download");
+        deleteButton = new JButton("Delete");
         refreshButton = new JButton("Refresh List");
         browseDownloadPathButton = new JButton("Browse");
 
         customizeButton(uploadButton);
         customizeButton(downloadButton);
+        customizeButton(deleteButton);
         customizeButton(refreshButton);
         customizeButton(browseDownloadPathButton);
 
@@ -75,6 +89,10 @@ public class ClientUI extends JFrame {
         downloadPathField = new JTextField(System.getProperty("user.home") + File.separator + "Downloads");
         downloadPathField.setFont(new Font("Segoe UI", Font.PLAIN, 12));
         downloadPathField.setEditable(false);
+
+        filterField = new JTextField();
+        filterField.setFont(new Font("Segoe UI", Font.PLAIN, 12));
+        filterField.setToolTipText("Show only files whose names start with this text; press Enter to apply.");
     }
 
     private void customizeButton(JButton button) {
@@ -113,6 +131,9 @@ public class ClientUI extends JFrame {
         topControlsPanel.add(downloadButton, gbc);
 
         gbc.gridx = 2;
+        topControlsPanel.add(deleteButton, gbc);
+
+        gbc.gridx = 3;
         topControlsPanel.add(refreshButton, gbc);
         
         // Row 1: Download Path
@@ -133,7 +154,21 @@ public class ClientUI extends JFrame {
         gbc.fill = GridBagConstraints.NONE;
         topControlsPanel.add(browseDownloadPathButton, gbc);
 
-        JScrollPane scrollPane = new JScrollPane(fileList);
+        // Row 2: Name Filter
+        gbc.gridx = 0;
+        gbc.gridy = 2;
+        gbc.gridwidth = 1;
+        gbc.anchor = GridBagConstraints.WEST;
+        topControlsPanel.add(new JLabel("Filter:"), gbc);
+
+        gbc.gridx = 1;
+        gbc.weightx = 1.0;
+        gbc.fill = GridBagConstraints.HORIZONTAL;
+        topControlsPanel.add(filterField, gbc);
+        gbc.weightx = 0.0;
+        gbc.fill = GridBagConstraints.NONE;
+
+        scrollPane = new JScrollPane(fileList);
         scrollPane.setBorder(BorderFactory.createTitledBorder(
                 BorderFactory.createEtchedBorder(), "Available Files"
         ));
@@ -221,6 +256,21 @@ public class ClientUI extends JFrame {
             }
         });
 
+        deleteButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                String selectedFile = fileList.getSelectedValue();
+                if (selectedFile == null || selectedFile.equals("No files available.")) {
+                    JOptionPane.showMessageDialog(ClientUI.this, "Please select a valid file to delete.", "No File Selected", JOptionPane.WARNING_MESSAGE);
+                    return;
+                }
+                int choice = JOptionPane.showConfirmDialog(ClientUI.this, "Delete '" + selectedFile + "'?", "Delete File", JOptionPane.YES_NO_OPTION);
+                if (choice == JOptionPane.YES_OPTION) {
+                    deleteFile(selectedFile);
+                }
+            }
+        });
+
         refreshButton.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
@@ -228,6 +278,15 @@ public class ClientUI extends JFrame {
             }
         });
 
+        filterField.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                loadFiles();
+            }
+        });
+
+        scrollPane.getVerticalScrollBar().addAdjustmentListener(e -> loadMoreIfNeeded());
+
         addWindowListener(new java.awt.event.WindowAdapter() {
             @Override
             public void windowClosing(java.awt.event.WindowEvent windowEvent) {
@@ -239,31 +298,62 @@ public class ClientUI extends JFrame {
         });
     }
 
+    // Starts the listing over from the first page, with the current filter.
     private void loadFiles() {
+        listingGeneration++;
+        listingPrefix = filterField.getText();
+        nextCursor = null;
+        loadingPage = false;
+        fileInfo.clear();
+        fileListModel.clear();
+        loadPage(null);
+    }
+
+    // Fetches the next page once the list is scrolled to within a couple of rows of its end,
+    // or straight away if the pages so far don't fill the view.
+    private void loadMoreIfNeeded() {
+        if (loadingPage || nextCursor == null) {
+            return;
+        }
+        JScrollBar bar = scrollPane.getVerticalScrollBar();
+        if (bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() - 2 * fileList.getFixedCellHeight()) {
+            loadPage(nextCursor);
+        }
+    }
+
+    private void loadPage(String cursor) {
+        int generation = listingGeneration;
+        String prefix = listingPrefix;
+        loadingPage = true;
         statusLabel.setText("Loading files...");
-        new SwingWorker<List<String>, Void>() {
+        new SwingWorker<FileListing, Void>() {
             @Override
-            protected List<String> doInBackground() throws Exception {
-                List<String> files = client.listAvailableFiles();
-                Collections.sort(files, String.CASE_INSENSITIVE_ORDER);
-                return files;
+            protected FileListing doInBackground() throws Exception {
+                return client.listFiles(prefix, cursor, PAGE_SIZE);
             }
 
             @Override
             protected void done() {
+                if (generation != listingGeneration) {
+                    return;
+                }
+                loadingPage = false;
                 try {
-                    List<String> files = get();
-                    fileListModel.clear();
-                    if (files.isEmpty()) {
+                    FileListing page = get();
+                    if (cursor == null && page.getEntries().isEmpty()) {
                         fileListModel.addElement("No files available.");
-                    } else {
-                        for (String file : files) {
-                            fileListModel.addElement(file);
-                        }
                     }
-                    statusLabel.setText("Files loaded.");
+                    for (FileListing.Entry entry : page.getEntries()) {
+                        fileInfo.put(entry.getFileName(), entry);
+                        fileListModel.addElement(entry.getFileName());
+                    }
+                    nextCursor = page.getNextCursor();
+                    statusLabel.setText(fileInfo.size() + " files loaded" + (page.hasMore() ? "; scroll for more." : "."));
+                    SwingUtilities.invokeLater(ClientUI.this::loadMoreIfNeeded);
                 } catch (Exception e) {
-                    statusLabel.setText("Error loading files.");
+                    // Stop here rather than retrying, and failing again, on every scroll.
+                    nextCursor = null;
+                    statusLabel.setText("Error loading files; press Refresh List to try again.");
                     JOptionPane.showMessageDialog(ClientUI.this, "Error loading files: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
                     e.printStackTrace();
                 }
@@ -271,6 +361,18 @@ public class ClientUI extends JFrame {
         }.execute();
     }
 
+    private static String formatSize(long bytes) {
+        if (bytes < 0) {
+            return "unknown size";
+        }
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        String units = "KMGTPE";
+        int unit = (63 - Long.numberOfLeadingZeros(bytes)) / 10;
+        return String.format("%.1f %sB", bytes / (double) (1L << (unit * 10)), units.charAt(unit - 1));
+    }
+
     private void uploadFile(File file) {
         statusLabel.setText("Uploading '" + file.getName() + "'...");
         progressBar.setValue(0);
@@ -316,9 +418,33 @@ public class ClientUI extends JFrame {
         );
     }
 
+    private void deleteFile(String fileName) {
+        statusLabel.setText("Deleting '" + fileName + "'...");
+        setButtonsEnabled(false);
+        new SwingWorker<Boolean, Void>() {
+            @Override
+            protected Boolean doInBackground() throws Exception {
+                return client.deleteFile(fileName);
+            }
+
+            @Override
+            protected void done() {
+                setButtonsEnabled(true);
+                try {
+                    statusLabel.setText(get() ? "Deleted '" + fileName + "'." : "'" + fileName + "' no longer exists.");
+                } catch (Exception e) {
+                    statusLabel.setText("Delete failed for '" + fileName + "'.");
+                    JOptionPane.showMessageDialog(ClientUI.this, "Delete failed: " + e.getMessage(), "Delete Error", JOptionPane.ERROR_MESSAGE);
+                }
+                loadFiles();
+            }
+        }.execute();
+    }
+
     private void setButtonsEnabled(boolean enabled) {
         uploadButton.setEnabled(enabled);
         downloadButton.setEnabled(enabled);
+        deleteButton.setEnabled(enabled);
         refreshButton.setEnabled(enabled);
         browseDownloadPathButton.setEnabled(enabled);
     }
@@ -377,10 +503,14 @@ public class ClientUI extends JFrame {
                 label.setVerticalAlignment(SwingConstants.CENTER);
                 label.setPreferredSize(null);
                 label.setBorder(null);
+                label.setToolTipText(null);
             } else {
                 Icon icon = getIconForFileExtension(fileName);
                 label.setIcon(icon);
                 label.setText(fileName);
+                FileListing.Entry info = fileInfo.get(fileName);
+                label.setToolTipText(info == null ? fileName : fileName + " - " + formatSize(info.getFileSize()) + " in "
+                        + info.getChunkCount() + (info.getChunkCount() == 1 ? " chunk" : " chunks"));
                 
                 // --- MODIFIED for better Grid View Layout ---
                 label.setHorizontalTextPosition(SwingConstants.CENTER);
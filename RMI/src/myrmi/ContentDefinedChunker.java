@@ -0,0 +1,77 @@
+package myrmi;
+
+import java.util.Random;
+
+// Picks chunk boundaries from the data itself (FastCDC-style), so an insert or delete only
+// changes the chunks around the edit and every later boundary lines up again.
+//
+// A gear hash rolls over the bytes: hash = (hash << 1) + GEAR[b], which makes the top bits
+// depend on roughly the last 64 bytes. A boundary falls where the masked top bits are zero.
+// No boundary is looked for in the first minSize bytes. Up to avgSize a stricter mask is used,
+// and after it a looser one, which pulls chunk sizes towards avgSize ("normalized chunking").
+// A chunk is always cut at maxSize.
+public class ContentDefinedChunker {
+    public static final int DEFAULT_MIN_SIZE = 256 * 1024;
+    public static final int DEFAULT_AVG_SIZE = 1024 * 1024;
+    public static final int DEFAULT_MAX_SIZE = 4 * 1024 * 1024;
+
+    // Fixed seed: every client must cut the same data at the same places.
+    private static final long[] GEAR = new long[256];
+    static {
+        Random random = new Random(0x6765617248617368L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final int minSize;
+    private final int avgSize;
+    private final int maxSize;
+    private final long strictMask;
+    private final long looseMask;
+
+    public ContentDefinedChunker() {
+        this(DEFAULT_MIN_SIZE, DEFAULT_AVG_SIZE, DEFAULT_MAX_SIZE);
+    }
+
+    public ContentDefinedChunker(int minSize, int avgSize, int maxSize) {
+        if (minSize < 64 || minSize >= avgSize || avgSize >= maxSize || Integer.bitCount(avgSize) != 1) {
+            throw new IllegalArgumentException("Need 64 <= min < avg < max with avg a power of two.");
+        }
+        this.minSize = minSize;
+        this.avgSize = avgSize;
+        this.maxSize = maxSize;
+        int bits = Integer.numberOfTrailingZeros(avgSize);
+        this.strictMask = -1L << (64 - (bits + 2));
+        this.looseMask = -1L << (64 - (bits - 2));
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    // Length of the chunk starting at data[offset]. The caller passes at least maxSize bytes
+    // unless the data ends sooner, in which case the remainder may become the last chunk.
+    public int nextChunkLength(byte[] data, int offset, int length) {
+        if (length <= minSize) {
+            return length;
+        }
+        int end = Math.min(length, maxSize);
+        int normal = Math.min(end, avgSize);
+        long hash = 0;
+        int i = minSize;
+        for (; i < normal; i++) {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xff];
+            if ((hash & strictMask) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < end; i++) {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xff];
+            if ((hash & looseMask) == 0) {
+                return i + 1;
+            }
+        }
+        return end;
+    }
+}
@@ -0,0 +1,202 @@
+package myrmi;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Keeps each chunk in its own file named after the chunk id. Writes are atomic: data goes to
+// a temp file in .incoming/, followed by a trailer holding its checksum, is fsynced, and is
+// then renamed over the chunk; the directory is fsynced last so the renames survive a crash.
+// Since the checksum travels in the same file, one rename publishes both.
+//
+// A group-commit batch fsyncs its temp files in parallel, renames them, then fsyncs the
+// directory once. That still costs one fsync per chunk plus one per batch: with a file per
+// chunk there is no way to make several chunks durable with a single call. Batching only
+// overlaps those fsyncs; it does not remove them. Servers whose disks can't keep up should
+// run SegmentChunkStore, which appends a batch to one segment and fsyncs it once.
+public class FileChunkStore extends ChunkStore {
+    static final String INCOMING_DIRECTORY = ".incoming";
+    // checksum (8 bytes) | TRAILER_MAGIC (8 bytes), after the chunk's data
+    private static final long TRAILER_MAGIC = 0x43484b54524c5231L;
+    private static final int TRAILER_BYTES = 2 * Long.BYTES;
+    private static final int SYNC_THREADS = 8;
+
+    private static class FilePending extends Pending {
+        private final Path temp;
+        private final FileChannel channel;
+
+        private FilePending(String chunkId, Path temp, FileChannel channel) {
+            super(chunkId);
+            this.temp = temp;
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(ByteBuffer src, long position) throws IOException {
+            while (src.hasRemaining()) {
+                position += channel.write(src, position);
+            }
+        }
+    }
+
+    private final Path incoming;
+    private final ExecutorService syncers;
+
+    public FileChunkStore(String serverId, Path directory, boolean groupCommit) throws IOException {
+        super(serverId, directory, groupCommit);
+        this.syncers = Executors.newFixedThreadPool(SYNC_THREADS, r -> {
+            Thread t = new Thread(r, serverId + "-chunk-sync");
+            t.setDaemon(true);
+            return t;
+        });
+        this.incoming = directory.resolve(INCOMING_DIRECTORY);
+        Files.createDirectories(incoming);
+        // Writes cut short by a crash; their chunks were never published.
+        File[] leftovers = incoming.toFile().listFiles();
+        if (leftovers != null) {
+            for (File leftover : leftovers) {
+                leftover.delete();
+            }
+        }
+        startCommitter();
+    }
+
+    @Override
+    public Pending create(String chunkId, long size) throws IOException {
+        Path temp = Files.createTempFile(incoming, "chunk", ".tmp");
+        return new FilePending(chunkId, temp, FileChannel.open(temp, StandardOpenOption.WRITE));
+    }
+
+    @Override
+    public void abort(Pending pending) {
+        FilePending file = (FilePending) pending;
+        try {
+            file.channel.close();
+            Files.deleteIfExists(file.temp);
+        } catch (IOException e) {
+            System.err.println(serverId + ": Error discarding partial chunk " + pending.chunkId + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    protected void publish(List<Pending> batch) throws IOException {
+        for (Pending pending : batch) {
+            FileChannel channel = ((FilePending) pending).channel;
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER_BYTES).putLong(pending.checksum).putLong(TRAILER_MAGIC);
+            trailer.flip();
+            long position = channel.size();
+            while (trailer.hasRemaining()) {
+                position += channel.write(trailer, position);
+            }
+        }
+        if (batch.size() == 1) {
+            force((FilePending) batch.get(0));
+        } else {
+            List<Future<Void>> syncs = new ArrayList<>(batch.size());
+            for (Pending pending : batch) {
+                syncs.add(syncers.submit(() -> {
+                    force((FilePending) pending);
+                    return null;
+                }));
+            }
+            for (Future<Void> sync : syncs) {
+                try {
+                    sync.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while syncing chunks", e);
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                }
+            }
+        }
+        for (Pending pending : batch) {
+            Files.move(((FilePending) pending).temp, directory.resolve(pending.chunkId), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        syncDirectory(directory);
+    }
+
+    private static void force(FilePending pending) throws IOException {
+        pending.channel.force(false);
+        pending.channel.close();
+    }
+
+    @Override
+    public ChunkView open(String chunkId) throws IOException {
+        return openChunkFile(directory.resolve(chunkId));
+    }
+
+    // A chunk file's data and the checksum from its trailer. A file whose trailer is missing or
+    // damaged has checksum NONE, which the scrubber treats as corrupt. Null if there is no such file.
+    static ChunkView openChunkFile(Path chunkFile) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(chunkFile, StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        try {
+            long size = channel.size();
+            if (size >= TRAILER_BYTES) {
+                ByteBuffer trailer = ByteBuffer.allocate(TRAILER_BYTES);
+                while (trailer.hasRemaining() && channel.read(trailer, size - TRAILER_BYTES + trailer.position()) >= 0) {
+                    // Keep reading.
+                }
+                if (trailer.getLong(Long.BYTES) == TRAILER_MAGIC) {
+                    return new ChunkView(channel, 0, size - TRAILER_BYTES, trailer.getLong(0), channel);
+                }
+            }
+            return new ChunkView(channel, 0, size, ChunkChecksums.NONE, channel);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // Skips the .incoming and .corrupt directories.
+    @Override
+    public List<String> chunkIds() {
+        String[] names = directory.toFile().list((dir, name) -> new File(dir, name).isFile());
+        return names != null ? Arrays.asList(names) : new ArrayList<>();
+    }
+
+    @Override
+    public void delete(String chunkId) throws IOException {
+        Files.deleteIfExists(directory.resolve(chunkId));
+    }
+
+    // A rename, rather than the copy the other stores need.
+    @Override
+    public void quarantine(String chunkId) throws IOException {
+        Path chunkFile = directory.resolve(chunkId);
+        Path quarantined = directory.resolve(QUARANTINE_DIRECTORY).resolve(chunkId);
+        Files.createDirectories(quarantined.getParent());
+        try {
+            Files.move(chunkFile, quarantined, StandardCopyOption.REPLACE_EXISTING);
+        } catch (NoSuchFileException e) {
+            // Deleted meanwhile.
+        }
+    }
+
+    // Makes renames in dir durable. Not every platform can open a directory for this.
+    static void syncDirectory(Path dir) {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Best effort.
+        }
+    }
+}
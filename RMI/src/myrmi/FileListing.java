@@ -0,0 +1,79 @@
+package myrmi;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// One page of the namespace in file-name order, with each file's size and chunk count.
+// nextCursor is the name to pass as the cursor for the following page, or null if this is
+// the last one. Files committed before sizes were recorded have a size of -1.
+//
+// A listing with a delimiter stops at it: names that continue past the prefix with another
+// delimiter are grouped into one common prefix each ("photos/2024/" for a delimiter of "/"),
+// listed in name order alongside the files and counted against the page size like them.
+public class FileListing implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final List<Entry> entries;
+    private final List<String> commonPrefixes;
+    private final String nextCursor;
+
+    public FileListing(List<Entry> entries, String nextCursor) {
+        this(entries, Collections.emptyList(), nextCursor);
+    }
+
+    public FileListing(List<Entry> entries, List<String> commonPrefixes, String nextCursor) {
+        this.entries = Collections.unmodifiableList(new ArrayList<>(entries));
+        this.commonPrefixes = Collections.unmodifiableList(new ArrayList<>(commonPrefixes));
+        this.nextCursor = nextCursor;
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    public List<String> getCommonPrefixes() {
+        return commonPrefixes;
+    }
+
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public boolean hasMore() {
+        return nextCursor != null;
+    }
+
+    public static class Entry implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String fileName;
+        private final long fileSize;
+        private final int chunkCount;
+        private final long version;
+
+        public Entry(String fileName, long fileSize, int chunkCount, long version) {
+            this.fileName = fileName;
+            this.fileSize = fileSize;
+            this.chunkCount = chunkCount;
+            this.version = version;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public long getFileSize() {
+            return fileSize;
+        }
+
+        public int getChunkCount() {
+            return chunkCount;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+    }
+}
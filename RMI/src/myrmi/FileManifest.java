@@ -0,0 +1,142 @@
+package myrmi;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Everything the metadata server needs to publish a file in one call:
+// its chunks in order, their lengths and the storage servers each chunk was written to.
+// The metadata server keeps manifests without locations and stamps each commit with a
+// version that increases with every commit. Files committed before sizes were recorded have
+// a file size and chunk lengths of -1, and files committed before versions a version of 0.
+// Chunks carry the CRC32C of their content, or ChunkChecksums.NONE if it wasn't recorded,
+// and the ChunkCodec they are stored with; lengths and checksums are those of the original
+// content either way.
+public class FileManifest implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String fileName;
+    private final long fileSize;
+    private final long version;
+    private final List<Chunk> chunks = new ArrayList<>();
+
+    public FileManifest(String fileName, long fileSize) {
+        this(fileName, fileSize, 0);
+    }
+
+    public FileManifest(String fileName, long fileSize, long version) {
+        this.fileName = fileName;
+        this.fileSize = fileSize;
+        this.version = version;
+    }
+
+    public void addChunk(String chunkName, List<String> servers) {
+        addChunk(chunkName, -1, servers);
+    }
+
+    public void addChunk(String chunkName, long length, List<String> servers) {
+        addChunk(chunkName, length, ChunkChecksums.NONE, servers);
+    }
+
+    public void addChunk(String chunkName, long length, long checksum, List<String> servers) {
+        addChunk(chunkName, length, checksum, ChunkCodec.NONE, servers);
+    }
+
+    public void addChunk(String chunkName, long length, long checksum, byte codec, List<String> servers) {
+        chunks.add(new Chunk(chunkName, length, checksum, codec, servers));
+    }
+
+    // The same file with the locations dropped and the given version, which is how the
+    // metadata server stores it.
+    public FileManifest withoutLocations(long version) {
+        FileManifest stripped = new FileManifest(fileName, fileSize, version);
+        for (Chunk chunk : chunks) {
+            stripped.addChunk(chunk.getName(), chunk.getLength(), chunk.getChecksum(), chunk.getCodec(), Collections.emptyList());
+        }
+        return stripped;
+    }
+
+    public boolean hasChunkLengths() {
+        for (Chunk chunk : chunks) {
+            if (chunk.getLength() < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public List<Chunk> getChunks() {
+        return Collections.unmodifiableList(chunks);
+    }
+
+    public List<String> getChunkNames() {
+        List<String> names = new ArrayList<>(chunks.size());
+        for (Chunk chunk : chunks) {
+            names.add(chunk.getName());
+        }
+        return names;
+    }
+
+    public static class Chunk implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String name;
+        private final long length;
+        private final long checksum;
+        private final byte codec;
+        private final List<String> servers;
+
+        public Chunk(String name, long length, List<String> servers) {
+            this(name, length, ChunkChecksums.NONE, servers);
+        }
+
+        public Chunk(String name, long length, long checksum, List<String> servers) {
+            this(name, length, checksum, ChunkCodec.NONE, servers);
+        }
+
+        public Chunk(String name, long length, long checksum, byte codec, List<String> servers) {
+            this.name = name;
+            this.length = length;
+            this.checksum = checksum;
+            this.codec = codec;
+            this.servers = servers.isEmpty() ? Collections.emptyList() : new ArrayList<>(servers);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public long getChecksum() {
+            return checksum;
+        }
+
+        public boolean hasChecksum() {
+            return checksum != ChunkChecksums.NONE;
+        }
+
+        public byte getCodec() {
+            return codec;
+        }
+
+        public List<String> getServers() {
+            return Collections.unmodifiableList(servers);
+        }
+    }
+}
@@ -1,51 +1,236 @@
 // FileTransferClient.java
 package myrmi;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.rmi.NoSuchObjectException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 
 public class FileTransferClient {
     private static final int CHUNK_SIZE = 1024 * 1024; // 1MB chunk size
-    private MetadataService metadataService;
+    private static final int DEFAULT_DOWNLOAD_CONCURRENCY = 8; // chunks in flight per download
+    private static final int DEFAULT_UPLOAD_CONCURRENCY = 4; // chunk buffers in flight per upload
+    private static final String CONTENT_ID_PREFIX = "sha256-";
+    private static final long DEFAULT_CACHE_BYTES = 64L * 1024 * 1024;
+    // Finished chunks are checkpointed this many at a time, or once the oldest has waited
+    // CHECKPOINT_BATCH_MS, so a checkpoint costs one sync per batch rather than per chunk.
+    private static final int CHECKPOINT_BATCH_CHUNKS = 32;
+    private static final long CHECKPOINT_BATCH_MS = 1000;
+    // Uploads turned away because garbage collection was deleting one of their chunks are
+    // retried this many times, waiting RECLAIM_RETRY_MS longer each time.
+    private static final int RECLAIM_RETRIES = 3;
+    private static final long RECLAIM_RETRY_MS = 2000;
+    // One per metadata shard; a file's metadata lives on the shard its name hashes to.
+    private List<MetadataService> metadataShards;
+    private String host;
     private Registry registry;
     private ExecutorService executorService; 
+    private final Map<String, StorageService> storageStubs = new ConcurrentHashMap<>();
+    private final Map<String, Integer> transferPorts = new ConcurrentHashMap<>();
+    private volatile int downloadConcurrency = DEFAULT_DOWNLOAD_CONCURRENCY;
+    private volatile int uploadConcurrency = DEFAULT_UPLOAD_CONCURRENCY;
+    private volatile int replicationFactor = 0; // 0 = the metadata server's default
+    private volatile boolean hedgedReads = false;
+    private volatile boolean deduplicate = false;
+    private volatile boolean contentDefinedChunking = false;
+    private volatile boolean compression = false;
+    private final ContentDefinedChunker chunker = new ContentDefinedChunker();
+    private volatile Path checkpointDirectory = Paths.get("checkpoints"); // upload checkpoints; downloads keep theirs beside the .part file
+    private final ReplicaStats replicaStats = new ReplicaStats();
+    private volatile ChunkCache chunkCache = new ChunkCache(DEFAULT_CACHE_BYTES);
 
     public FileTransferClient(String host, int port) throws Exception {
+        this.host = host;
         this.registry = LocateRegistry.getRegistry(host, port);
-        this.metadataService = (MetadataService) registry.lookup("MetadataService");
+        this.metadataShards = MetadataShards.lookup(registry);
         this.executorService = Executors.newCachedThreadPool(); 
-        System.out.println("Connected to Metadata Service.");
+        System.out.println(metadataShards.size() > 1 ? "Connected to " + metadataShards.size() + " Metadata Service shards."
+                : "Connected to Metadata Service.");
+    }
+
+    private MetadataService metadataFor(String fileName) {
+        return metadataShards.get(MetadataShards.shardOf(fileName, metadataShards.size()));
+    }
+
+    // Prefix for the chunks a file stores, tying them to its shard.
+    private String chunkScope(String fileName) {
+        return MetadataShards.chunkPrefix(MetadataShards.shardOf(fileName, metadataShards.size()), metadataShards.size());
+    }
+
+    public void setDownloadConcurrency(int downloadConcurrency) {
+        if (downloadConcurrency < 1) {
+            throw new IllegalArgumentException("Download concurrency must be at least 1.");
+        }
+        this.downloadConcurrency = downloadConcurrency;
+    }
+
+    public void setUploadConcurrency(int uploadConcurrency) {
+        if (uploadConcurrency < 1) {
+            throw new IllegalArgumentException("Upload concurrency must be at least 1.");
+        }
+        this.uploadConcurrency = uploadConcurrency;
+    }
+
+    // Copies to keep of each uploaded chunk; 0 leaves it to the metadata server.
+    public void setReplicationFactor(int replicationFactor) {
+        if (replicationFactor < 0) {
+            throw new IllegalArgumentException("Replication factor cannot be negative.");
+        }
+        this.replicationFactor = replicationFactor;
+    }
+
+    // When on, a chunk read that runs past its server's tail-latency estimate is raced
+    // against a second replica.
+    public void setHedgedReads(boolean hedgedReads) {
+        this.hedgedReads = hedgedReads;
+    }
+
+    // When on, chunks are named by a hash of their content and only chunks the storage
+    // servers don't already hold are sent.
+    public void setDeduplication(boolean deduplicate) {
+        this.deduplicate = deduplicate;
+    }
+
+    // When on, chunk boundaries follow the content (see ContentDefinedChunker) instead of fixed
+    // CHUNK_SIZE offsets, so an edit only changes the chunks around it. Chunks are then always
+    // content-addressed, since index-based names would gain nothing from stable boundaries.
+    public void setContentDefinedChunking(boolean contentDefinedChunking) {
+        this.contentDefinedChunking = contentDefinedChunking;
+    }
+
+    // When on, chunks that probe as compressible are sent and stored compressed (see ChunkCodec)
+    // and decompressed on download. Content-addressed chunks carry their codec in their name,
+    // so a compressed and an uncompressed copy of the same content are never confused.
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    public void setCheckpointDirectory(Path checkpointDirectory) {
+        this.checkpointDirectory = checkpointDirectory;
+    }
+
+    // Replaces the chunk cache, e.g. with one that has a disk tier; null turns caching off.
+    public void setChunkCache(ChunkCache chunkCache) {
+        this.chunkCache = chunkCache;
+    }
+
+    public ChunkCache getChunkCache() {
+        return chunkCache;
+    }
+
+    public ReplicaStats getReplicaStats() {
+        return replicaStats;
+    }
+
+    public FileListing listFiles(String prefix, String cursor, int limit) throws Exception {
+        return listFiles(prefix, null, cursor, limit);
+    }
+
+    // A page of the files whose names start with prefix, after cursor (null for the first
+    // page), with names continuing past delimiter grouped into common prefixes (null for no
+    // grouping). With several metadata shards, each returns its own next page and the merge
+    // keeps only names up to where the shortest unfinished shard page ends (a shard may return
+    // less than asked for), then cuts at limit, which gives the pages a single server would.
+    // Shards list the same common prefix when each has files under it; it is kept once.
+    public FileListing listFiles(String prefix, String delimiter, String cursor, int limit) throws Exception {
+        if (metadataShards.size() == 1) {
+            return metadataShards.get(0).listFiles(prefix, delimiter, cursor, limit);
+        }
+        // Name -> entry, or null for a common prefix.
+        TreeMap<String, FileListing.Entry> merged = new TreeMap<>();
+        String bound = null;
+        for (MetadataService metadataService : metadataShards) {
+            FileListing page = metadataService.listFiles(prefix, delimiter, cursor, limit);
+            for (FileListing.Entry entry : page.getEntries()) {
+                merged.put(entry.getFileName(), entry);
+            }
+            for (String commonPrefix : page.getCommonPrefixes()) {
+                merged.put(commonPrefix, null);
+            }
+            if (page.hasMore() && (bound == null || page.getNextCursor().compareTo(bound) < 0)) {
+                bound = page.getNextCursor();
+            }
+        }
+        SortedMap<String, FileListing.Entry> kept = bound != null ? merged.headMap(bound, true) : merged;
+        List<FileListing.Entry> entries = new ArrayList<>();
+        List<String> commonPrefixes = new ArrayList<>();
+        String last = null;
+        for (Map.Entry<String, FileListing.Entry> item : kept.entrySet()) {
+            if (entries.size() + commonPrefixes.size() == limit) {
+                break;
+            }
+            if (item.getValue() != null) {
+                entries.add(item.getValue());
+            } else {
+                commonPrefixes.add(item.getKey());
+            }
+            last = item.getKey();
+        }
+        boolean more = bound != null || kept.size() > limit;
+        return new FileListing(entries, commonPrefixes, more ? last : null);
+    }
+
+    // Returns false if there is no such file.
+    public boolean deleteFile(String fileName) throws Exception {
+        return metadataFor(fileName).deleteFile(fileName);
     }
 
     public List<String> listAvailableFiles() throws Exception {
         
-        return metadataService.listAvailableFiles();
+        if (metadataShards.size() == 1) {
+            return metadataShards.get(0).listAvailableFiles();
+        }
+        List<String> files = new ArrayList<>();
+        for (MetadataService metadataService : metadataShards) {
+            files.addAll(metadataService.listAvailableFiles());
+        }
+        return files;
     }
 
     public void uploadFile(File file, Consumer<Integer> progressCallback, Runnable onComplete, Consumer<Exception> onError) {
         executorService.submit(() -> {
             try {
-               
-                List<String> uploadedChunkNames = new ArrayList<>();
-                long fileSize = file.length(); 
-
-                _uploadFile(file, progressCallback, uploadedChunkNames);
-                       
-                metadataService.fileUploaded(file.getName(), fileSize, uploadedChunkNames); 
+                uploadRetryingReclaimed(file, progressCallback);
                 System.out.println("File '" + file.getName() + "' uploaded successfully.");
                 if (onComplete != null) {
                     onComplete.run();
@@ -78,94 +263,1068 @@ public class FileTransferClient {
         });
     }
 
-    
-    private void _uploadFile(File file, Consumer<Integer> progressCallback, List<String> uploadedChunkNames) throws Exception {
+    // Uploads resume, so a retry sends only the chunks that were refused, and findChunks no
+    // longer offers copies that are being deleted.
+    private void uploadRetryingReclaimed(File file, Consumer<Integer> progressCallback) throws Exception {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                _uploadFile(file, progressCallback);
+                return;
+            } catch (Exception e) {
+                if (attempt > RECLAIM_RETRIES || !isChunkReclaimed(e)) {
+                    throw e;
+                }
+                System.err.println("Upload of '" + file.getName() + "' hit a chunk being garbage collected; retrying.");
+                Thread.sleep(RECLAIM_RETRY_MS * attempt);
+            }
+        }
+    }
+
+    private static boolean isChunkReclaimed(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ChunkReclaimedException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Uploads are resumable. Each stored chunk is reported to the metadata server's upload
+    // session and appended to a local checkpoint; uploading the same unchanged file again
+    // after a failure sends only the chunks that are missing.
+    private void _uploadFile(File file, Consumer<Integer> progressCallback) throws Exception {
         long fileSize = file.length();
-        int chunkIndex = 0;
-        long totalBytesRead = 0;
+        MetadataService metadataService = metadataFor(file.getName());
+        String chunkScope = chunkScope(file.getName());
+        boolean contentDefined = contentDefinedChunking;
+        boolean contentAddressed = deduplicate || contentDefined;
+        boolean compress = compression;
+        List<String> chunkIds = new ArrayList<>();
+        List<Integer> chunkLengths = new ArrayList<>();
+        List<Long> scannedChecksums = new ArrayList<>();
+        List<Byte> scannedCodecs = new ArrayList<>();
+        Map<String, List<String>> knownChunks = Collections.emptyMap();
+        if (contentAddressed) {
+            scanChunks(file, fileSize, contentDefined ? chunker : null, compress, chunkIds, chunkLengths, scannedChecksums, scannedCodecs);
+            if (!chunkScope.isEmpty()) {
+                chunkIds.replaceAll(id -> chunkScope + id);
+            }
+            knownChunks = metadataService.findChunks(new ArrayList<>(new LinkedHashSet<>(chunkIds)));
+        } else {
+            String chunkPrefix = chunkScope + file.getName() + "." + versionTag(file) + "_chunk_";
+            for (long offset = 0; offset < fileSize; offset += CHUNK_SIZE) {
+                chunkIds.add(chunkPrefix + chunkIds.size());
+                chunkLengths.add((int) Math.min(CHUNK_SIZE, fileSize - offset));
+            }
+        }
+        int totalChunks = chunkIds.size();
+        // Filled in by the scan, from resumed chunks, or as chunks are sent.
+        long[] checksums = new long[totalChunks];
+        Arrays.fill(checksums, ChunkChecksums.NONE);
+        for (int i = 0; i < scannedChecksums.size(); i++) {
+            checksums[i] = scannedChecksums.get(i);
+        }
+        // Chosen by the scan for content-addressed chunks, as they are sent for the others.
+        byte[] codecs = new byte[totalChunks];
+        for (int i = 0; i < scannedCodecs.size(); i++) {
+            codecs[i] = scannedCodecs.get(i);
+        }
+
+        String mode = (contentDefined ? "cdc" : contentAddressed ? "sha256" : "fixed") + (compress ? "+deflate" : "");
+        String checkpointHeader = "upload\t" + file.getAbsolutePath() + "\t" + fileSize + "\t" + file.lastModified() + "\t" + mode;
+        byte[] pathBytes = file.getAbsolutePath().getBytes(StandardCharsets.UTF_8);
+        TransferCheckpoint checkpoint = TransferCheckpoint.open(
+                checkpointDirectory.resolve("upload-" + contentId(pathBytes, 0, pathBytes.length) + ".ckpt"), checkpointHeader);
+        try {
+            Map<Integer, FileManifest.Chunk> resumed = new HashMap<>();
+            String sessionId = resumeUploadSession(file, fileSize, checkpoint, resumed);
+            for (Map.Entry<Integer, FileManifest.Chunk> entry : resumed.entrySet()) {
+                int index = entry.getKey();
+                if (index >= totalChunks || !entry.getValue().getName().equals(chunkIds.get(index))) {
+                    throw new IOException("Checkpoint for '" + file.getName() + "' doesn't match the file; delete it to start over.");
+                }
+                if (checksums[index] == ChunkChecksums.NONE) {
+                    checksums[index] = entry.getValue().getChecksum();
+                }
+                codecs[index] = entry.getValue().getCodec();
+            }
+
+            // Only the first occurrence of each chunk the servers don't have yet is sent.
+            boolean[] send = new boolean[totalChunks];
+            Set<String> claimed = new HashSet<>();
+            Map<String, List<String>> storedReplicas = new ConcurrentHashMap<>(knownChunks);
+            for (FileManifest.Chunk chunk : resumed.values()) {
+                storedReplicas.put(chunk.getName(), chunk.getServers());
+            }
+            int chunksToSend = 0;
+            for (int i = 0; i < totalChunks; i++) {
+                if (!storedReplicas.containsKey(chunkIds.get(i)) && claimed.add(chunkIds.get(i))) {
+                    send[i] = true;
+                    chunksToSend++;
+                }
+            }
+            if (contentAddressed || !resumed.isEmpty()) {
+                System.out.println("Upload of '" + file.getName() + "': sending " + chunksToSend + " of " + totalChunks + " chunks.");
+            }
+            uploadChunks(file, fileSize, chunkIds, chunkLengths, checksums, codecs, send, chunksToSend, contentAddressed, compress,
+                    sessionId, checkpoint, storedReplicas, progressCallback);
+
+            FileManifest manifest = new FileManifest(file.getName(), fileSize);
+            for (int i = 0; i < totalChunks; i++) {
+                manifest.addChunk(chunkIds.get(i), chunkLengths.get(i), checksums[i], codecs[i], storedReplicas.get(chunkIds.get(i)));
+            }
+            metadataService.commitUpload(sessionId, manifest);
+            checkpoint.delete();
+        } finally {
+            checkpoint.close();
+        }
+    }
+
+    // Picks up the session recorded in the checkpoint and fills resumed with the chunks already
+    // stored, by index. If the metadata server no longer has the session, the checkpoint's chunks
+    // that still have a live replica are carried over into a new one.
+    private String resumeUploadSession(File file, long fileSize, TransferCheckpoint checkpoint,
+            Map<Integer, FileManifest.Chunk> resumed) throws Exception {
+        MetadataService metadataService = metadataFor(file.getName());
+        String sessionId = null;
+        Map<Integer, FileManifest.Chunk> checkpointed = new HashMap<>();
+        for (String entry : checkpoint.entries()) {
+            String[] fields = entry.split("\t", -1);
+            if (fields[0].equals("session")) {
+                sessionId = fields[1];
+            } else if (fields[0].equals("chunk")) {
+                List<String> servers = fields[4].isEmpty() ? Collections.emptyList() : Arrays.asList(fields[4].split(","));
+                long checksum = fields.length > 5 ? Long.parseLong(fields[5]) : ChunkChecksums.NONE;
+                byte codec = fields.length > 6 ? Byte.parseByte(fields[6]) : ChunkCodec.NONE;
+                checkpointed.put(Integer.parseInt(fields[1]), new FileManifest.Chunk(fields[2], Long.parseLong(fields[3]), checksum,
+                        codec, servers));
+            }
+        }
+        Map<Integer, FileManifest.Chunk> session = sessionId != null ? metadataService.resumeUpload(sessionId) : null;
+        if (session != null) {
+            resumed.putAll(session);
+            return sessionId;
+        }
+        sessionId = metadataService.beginUpload(file.getName(), fileSize);
+        checkpoint.append("session\t" + sessionId);
+        if (!checkpointed.isEmpty()) {
+            List<String> names = new ArrayList<>();
+            for (FileManifest.Chunk chunk : checkpointed.values()) {
+                names.add(chunk.getName());
+            }
+            Map<String, List<String>> live = metadataService.findChunks(names);
+            for (Map.Entry<Integer, FileManifest.Chunk> entry : checkpointed.entrySet()) {
+                FileManifest.Chunk chunk = entry.getValue();
+                List<String> servers = live.get(chunk.getName());
+                if (servers != null) {
+                    resumed.put(entry.getKey(), new FileManifest.Chunk(chunk.getName(), chunk.getLength(), chunk.getChecksum(),
+                            chunk.getCodec(), servers));
+                }
+            }
+            if (!resumed.isEmpty()) {
+                metadataService.chunksUploaded(sessionId, resumed);
+                for (Map.Entry<Integer, FileManifest.Chunk> entry : resumed.entrySet()) {
+                    checkpoint.append(checkpointEntry(entry.getKey(), entry.getValue()));
+                }
+            }
+        }
+        return sessionId;
+    }
+
+    private static String checkpointEntry(int index, FileManifest.Chunk chunk) {
+        return "chunk\t" + index + "\t" + chunk.getName() + "\t" + chunk.getLength() + "\t" + String.join(",", chunk.getServers())
+                + "\t" + chunk.getChecksum() + "\t" + chunk.getCodec();
+    }
+
+    private void uploadChunks(File file, long fileSize, List<String> chunkIds, List<Integer> chunkLengths, long[] checksums,
+            byte[] codecs, boolean[] send, int chunksToSend, boolean contentAddressed, boolean compress, String sessionId,
+            TransferCheckpoint checkpoint, Map<String, List<String>> storedReplicas, Consumer<Integer> progressCallback) throws Exception {
+        int totalChunks = chunkIds.size();
+        MetadataService metadataService = metadataFor(file.getName());
+        List<List<String>> placement = metadataService.reserveChunkPlacement(chunksToSend, replicationFactor);
+
+        // The pool doubles as the in-flight window: the reader blocks until an upload hands its buffer back.
+        int window = Math.max(1, Math.min(uploadConcurrency, chunksToSend));
+        int bufferSize = chunkLengths.isEmpty() ? 0 : Collections.max(chunkLengths);
+        BlockingQueue<byte[]> bufferPool = new ArrayBlockingQueue<>(window);
+        for (int i = 0; i < window; i++) {
+            bufferPool.add(new byte[bufferSize]);
+        }
+
+        AtomicLong totalBytesUploaded = new AtomicLong();
+        AtomicLong bytesSent = new AtomicLong();
+        AtomicLong compressedChunks = new AtomicLong();
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        List<Future<?>> pending = new ArrayList<>(chunksToSend);
+        // The session hears about a batch before the checkpoint does, so everything
+        // checkpointed is known to the metadata server.
+        CheckpointBatch<FileManifest.Chunk> reported = new CheckpointBatch<>(batch -> {
+            metadataService.chunksUploaded(sessionId, batch);
+            for (Map.Entry<Integer, FileManifest.Chunk> entry : batch.entrySet()) {
+                checkpoint.append(checkpointEntry(entry.getKey(), entry.getValue()));
+            }
+        });
 
         try (FileInputStream fis = new FileInputStream(file)) {
-            byte[] buffer = new byte[CHUNK_SIZE];
-            int bytesRead;
-            while ((bytesRead = fis.read(buffer)) != -1) {
-                byte[] chunkData = new byte[bytesRead];
-                System.arraycopy(buffer, 0, chunkData, 0, bytesRead);
+            int sent = 0;
+            for (int chunkIndex = 0; failure.get() == null && chunkIndex < totalChunks; chunkIndex++) {
+                int chunkLength = chunkLengths.get(chunkIndex);
+                if (!send[chunkIndex]) {
+                    fis.getChannel().position(fis.getChannel().position() + chunkLength);
+                    reportProgress(progressCallback, totalBytesUploaded.addAndGet(chunkLength), fileSize);
+                    continue;
+                }
+                byte[] buffer = bufferPool.take();
+                int bytesRead = readFully(fis, buffer, 0, chunkLength);
+                if (bytesRead < chunkLength) {
+                    bufferPool.add(buffer);
+                    throw new IOException("File '" + file.getName() + "' changed during upload.");
+                }
+                String chunkId = chunkIds.get(chunkIndex);
+                int index = chunkIndex;
+                List<String> replicas = placement.get(sent++);
 
-                String storageServerId = metadataService.getNextChunkServer();
-                StorageService storageService = (StorageService) registry.lookup(storageServerId);
+                pending.add(executorService.submit(() -> {
+                    try {
+                        // The file is read twice when deduplicating; make sure it didn't change in between.
+                        if (contentAddressed && !MetadataShards.unscoped(chunkId).equals(chunkContentId(buffer, 0, bytesRead, codecs[index]))) {
+                            throw new IOException("File '" + file.getName() + "' changed during upload.");
+                        }
+                        long checksum = ChunkChecksums.of(buffer, 0, bytesRead);
+                        checksums[index] = checksum;
+                        byte[] payload = buffer;
+                        if (!contentAddressed && compress) {
+                            byte[] encoded = ChunkCodec.encodeIfSmaller(buffer, 0, bytesRead);
+                            if (encoded != null) {
+                                codecs[index] = ChunkCodec.DEFLATE;
+                                payload = encoded;
+                            }
+                        } else if (codecs[index] != ChunkCodec.NONE) {
+                            payload = ChunkCodec.encode(codecs[index], buffer, 0, bytesRead);
+                        }
+                        // Servers check what they receive, which for a compressed chunk is the encoded bytes.
+                        int payloadLength = payload == buffer ? bytesRead : payload.length;
+                        long payloadChecksum = payload == buffer ? checksum : ChunkChecksums.of(payload, 0, payloadLength);
+                        FileManifest.Chunk stored = new FileManifest.Chunk(chunkId, bytesRead, checksum, codecs[index],
+                                putReplicas(replicas, chunkId, payload, payloadLength, payloadChecksum));
+                        bytesSent.addAndGet(payloadLength);
+                        if (payload != buffer) {
+                            compressedChunks.incrementAndGet();
+                        }
+                        storedReplicas.put(chunkId, stored.getServers());
+                        reported.add(index, stored);
+                        reportProgress(progressCallback, totalBytesUploaded.addAndGet(bytesRead), fileSize);
+                    } catch (Exception e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        bufferPool.add(buffer);
+                    }
+                }));
+            }
+        } catch (Exception e) {
+            // Stop reading, but let the chunks in flight finish and be recorded below, so they
+            // aren't sent again on retry and don't outlive their buffers.
+            if (!failure.compareAndSet(null, e)) {
+                failure.get().addSuppressed(e);
+            }
+        }
+        for (Future<?> f : pending) {
+            f.get();
+        }
+        // Also after a failure, so a retry can skip what was stored.
+        try {
+            reported.flush();
+        } catch (Exception e) {
+            failure.compareAndSet(null, e);
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        if (compress && chunksToSend > 0) {
+            System.out.println("Upload of '" + file.getName() + "': " + compressedChunks.get() + " of " + chunksToSend
+                    + " chunks compressed, " + bytesSent.get() + " bytes sent per replica.");
+        }
+    }
 
-                String chunkId = file.getName() + "_chunk_" + chunkIndex;
-                storageService.uploadChunk(chunkId, chunkData);
-                  
-                uploadedChunkNames.add(chunkId);
-                
-                metadataService.chunkStored(chunkId, storageServerId); 
+    private static void reportProgress(Consumer<Integer> progressCallback, long bytesDone, long fileSize) {
+        if (progressCallback != null && fileSize > 0) {
+            progressCallback.accept((int) ((bytesDone * 100) / fileSize));
+        }
+    }
 
-                totalBytesRead += bytesRead;
-                int progress = (int) ((totalBytesRead * 100) / fileSize);
-                if (progressCallback != null) {
-                    progressCallback.accept(progress);
+    // Splits the file at fixed CHUNK_SIZE offsets, or where chunker finds boundaries, and
+    // records each chunk's content id, length, checksum and codec in order. With compress,
+    // chunks get DEFLATE only if compressing them actually pays, as on the fixed-size path;
+    // the codec is part of the content id, so it can't be changed once the chunk is sent.
+    private static void scanChunks(File file, long fileSize, ContentDefinedChunker chunker, boolean compress, List<String> chunkIds,
+            List<Integer> chunkLengths, List<Long> checksums, List<Byte> codecs) throws IOException {
+        int maxChunk = chunker != null ? chunker.getMaxSize() : CHUNK_SIZE;
+        byte[] buffer = new byte[2 * maxChunk];
+        int start = 0;
+        int end = 0;
+        boolean eof = false;
+        long scanned = 0;
+        try (FileInputStream fis = new FileInputStream(file)) {
+            while (true) {
+                // Keep at least a full chunk buffered so every boundary is decided on complete data.
+                if (!eof && end - start < maxChunk) {
+                    System.arraycopy(buffer, start, buffer, 0, end - start);
+                    end -= start;
+                    start = 0;
+                    int n = readFully(fis, buffer, end, buffer.length - end);
+                    end += n;
+                    eof = end < buffer.length;
+                }
+                int available = end - start;
+                if (available == 0) {
+                    break;
                 }
-                chunkIndex++;
+                int length = chunker != null ? chunker.nextChunkLength(buffer, start, available) : Math.min(CHUNK_SIZE, available);
+                byte codec = compress && ChunkCodec.encodeIfSmaller(buffer, start, length) != null ? ChunkCodec.DEFLATE : ChunkCodec.NONE;
+                chunkIds.add(chunkContentId(buffer, start, length, codec));
+                chunkLengths.add(length);
+                checksums.add(ChunkChecksums.of(buffer, start, length));
+                codecs.add(codec);
+                start += length;
+                scanned += length;
             }
         }
+        if (scanned != fileSize) {
+            throw new IOException("File '" + file.getName() + "' changed during upload.");
+        }
+    }
+
+    // Storage-safe name for a chunk's content: "sha256-" followed by the digest in hex.
+    private static String contentId(byte[] data, int offset, int length) {
+        MessageDigest sha256;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        sha256.update(data, offset, length);
+        StringBuilder id = new StringBuilder(CONTENT_ID_PREFIX);
+        for (byte b : sha256.digest()) {
+            id.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return id.toString();
+    }
+
+    // Distinguishes the fixed-size chunks of each version of a file, so overwriting a file never
+    // rewrites chunks that readers of the previous version may still be fetching; the old
+    // ones are reclaimed by garbage collection. It stays the same while the local file is
+    // unchanged, so a resumed upload names its chunks as before.
+    private static String versionTag(File file) {
+        byte[] version = (file.getAbsolutePath() + "\t" + file.length() + "\t" + file.lastModified()).getBytes(StandardCharsets.UTF_8);
+        return contentId(version, 0, version.length).substring(CONTENT_ID_PREFIX.length(), CONTENT_ID_PREFIX.length() + 12);
+    }
+
+    // The content id, plus ".<codec>" for chunks stored compressed.
+    private static String chunkContentId(byte[] data, int offset, int length, byte codec) {
+        String id = contentId(data, offset, length);
+        return codec == ChunkCodec.NONE ? id : id + "." + ChunkCodec.name(codec);
+    }
+
+    private static int readFully(FileInputStream fis, byte[] buffer, int offset, int length) throws IOException {
+        int filled = 0;
+        while (filled < length) {
+            int n = fis.read(buffer, offset + filled, length - filled);
+            if (n == -1) {
+                break;
+            }
+            filled += n;
+        }
+        return filled;
+    }
+
+    // Reads up to length bytes of the file starting at offset, fetching only the parts of the
+    // chunks that cover them, in parallel. Returns fewer bytes at the end of the file and an
+    // empty array past it.
+    public byte[] read(String fileName, long offset, int length) throws Exception {
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException("Invalid range " + offset + "+" + length);
+        }
+        FileManifest manifest = metadataFor(fileName).getFileManifest(fileName);
+        if (manifest == null) {
+            throw new Exception("File '" + fileName + "' not found.");
+        }
+        List<FileManifest.Chunk> chunks = manifest.getChunks();
+        long[] offsets = chunkOffsets(manifest);
+        long end = Math.min(offset + length, offsets[chunks.size()]);
+        if (end <= offset) {
+            return new byte[0];
+        }
+        byte[] result = new byte[(int) (end - offset)];
+        int first = Arrays.binarySearch(offsets, offset);
+        first = first >= 0 ? first : -first - 2;
+
+        List<Future<Integer>> parts = new ArrayList<>();
+        List<Integer> partEnds = new ArrayList<>();
+        for (int i = first; i < chunks.size() && offsets[i] < end; i++) {
+            FileManifest.Chunk chunk = chunks.get(i);
+            if (chunk.getServers().isEmpty()) {
+                throw new Exception("No available storage server for chunk: " + chunk.getName());
+            }
+            long from = Math.max(offset, offsets[i]);
+            long to = Math.min(end, offsets[i + 1]);
+            long chunkOffset = from - offsets[i];
+            ByteBuffer dst = ByteBuffer.wrap(result, (int) (from - offset), (int) (to - from));
+            long chunkLength = offsets[i + 1] - offsets[i];
+            parts.add(executorService.submit(() -> readPart(manifest, chunk, chunkLength, chunkOffset, dst)));
+            partEnds.add((int) (to - offset));
+        }
+        // Only a legacy file's last chunk can come up short; the file ends there.
+        int available = result.length;
+        for (int i = 0; i < parts.size(); i++) {
+            int asked = partEnds.get(i) - (i == 0 ? 0 : partEnds.get(i - 1));
+            int got = parts.get(i).get();
+            if (got < asked) {
+                available = Math.min(available, partEnds.get(i) - asked + got);
+            }
+        }
+        return available == result.length ? result : Arrays.copyOf(result, available);
+    }
+
+    // With a cache, a miss fetches the whole chunk so later reads of the same chunk are local;
+    // without one, only the requested part is fetched. A part of a chunk can't be checked
+    // against the chunk's checksum, so only whole chunks are verified. Compressed chunks are
+    // always fetched whole, since a part of one can't be decoded.
+    private int readPart(FileManifest manifest, FileManifest.Chunk chunk, long chunkLength, long chunkOffset, ByteBuffer dst) throws Exception {
+        ChunkCache cache = chunkCache;
+        if (cache == null && chunk.getCodec() == ChunkCodec.NONE) {
+            boolean whole = chunkOffset == 0 && dst.remaining() == chunkLength;
+            return fetchRange(chunk.getServers(), chunk.getName(), chunkOffset, dst, whole ? chunk.getChecksum() : ChunkChecksums.NONE);
+        }
+        byte[] data = cache != null ? cachedChunk(cache, manifest, chunk) : null;
+        if (data == null) {
+            if (chunk.getCodec() != ChunkCodec.NONE) {
+                data = fetchDecoded(chunk);
+            } else {
+                ByteBuffer whole = ByteBuffer.allocate((int) chunkLength);
+                int length = fetchRange(chunk.getServers(), chunk.getName(), 0, whole, chunk.getChecksum());
+                data = length == chunkLength ? whole.array() : Arrays.copyOf(whole.array(), length);
+            }
+            if (cache != null && isCacheable(manifest, chunk)) {
+                cache.put(cacheKey(manifest, chunk), data);
+            }
+        }
+        int count = (int) Math.max(0, Math.min(dst.remaining(), data.length - chunkOffset));
+        dst.duplicate().put(data, (int) chunkOffset, count);
+        return count;
+    }
+
+    // Content-addressed chunks can't change, so their name is key enough, and a copy fetched
+    // for one file serves every file that shares it. Index-named chunks are rewritten in place
+    // when a file is uploaded again, so their key includes the file version from the metadata
+    // server; an overwrite makes the old entries unreachable.
+    private static String cacheKey(FileManifest manifest, FileManifest.Chunk chunk) {
+        return isContentAddressed(chunk) ? chunk.getName() : chunk.getName() + "@" + manifest.getVersion();
+    }
+
+    private static boolean isContentAddressed(FileManifest.Chunk chunk) {
+        return MetadataShards.unscoped(chunk.getName()).startsWith(CONTENT_ID_PREFIX);
+    }
+
+    // Index-named chunks of files committed before versions were recorded (version 0) have
+    // no key that an overwrite would change, so they are never cached.
+    private static boolean isCacheable(FileManifest manifest, FileManifest.Chunk chunk) {
+        return manifest.getVersion() != 0 || isContentAddressed(chunk);
+    }
+
+    private static byte[] cachedChunk(ChunkCache cache, FileManifest manifest, FileManifest.Chunk chunk) {
+        if (!isCacheable(manifest, chunk)) {
+            return null;
+        }
+        String key = cacheKey(manifest, chunk);
+        byte[] data = cache.get(key);
+        if (data != null && ((chunk.getLength() >= 0 && data.length != chunk.getLength())
+                || (chunk.hasChecksum() && ChunkChecksums.of(data, 0, data.length) != chunk.getChecksum()))) {
+            System.err.println("Dropping damaged cached copy of " + chunk.getName());
+            cache.invalidate(key);
+            return null;
+        }
+        return data;
+    }
+
+    // Reads part of a chunk into dst from the best-ranked replica, falling back to the others,
+    // including when what arrives doesn't match checksum (NONE to skip the check).
+    private int fetchRange(List<String> replicas, String chunkId, long chunkOffset, ByteBuffer dst, long checksum) throws Exception {
+        Exception lastError = null;
+        for (String server : replicaStats.rank(replicas)) {
+            replicaStats.begin(server);
+            long start = System.nanoTime();
+            try {
+                int count;
+                int transferPort = transferPortOf(server);
+                if (transferPort > 0) {
+                    count = overChannel(server, transferPort, port -> ChunkTransferClient.read(host, port, chunkId, chunkOffset, dst.duplicate()));
+                } else {
+                    byte[] range = withStorage(server, storage -> storage.readChunkRange(chunkId, chunkOffset, dst.remaining()));
+                    dst.duplicate().put(range);
+                    count = range.length;
+                }
+                if (checksum != ChunkChecksums.NONE) {
+                    ByteBuffer received = dst.duplicate();
+                    received.limit(received.position() + count);
+                    long actual = ChunkChecksums.of(received);
+                    if (actual != checksum) {
+                        throw ChunkChecksums.mismatch(chunkId, checksum, actual);
+                    }
+                }
+                replicaStats.recordSuccess(server, System.nanoTime() - start);
+                return count;
+            } catch (Exception e) {
+                replicaStats.recordFailure(server);
+                System.err.println("Reading part of " + chunkId + " from " + server + " failed: " + e.getMessage());
+                lastError = e;
+            } finally {
+                replicaStats.end(server);
+            }
+        }
+        throw lastError;
+    }
+
+    // Fetches a compressed chunk whole and decodes it. A copy that doesn't decode, or decodes
+    // to something that doesn't match the chunk's checksum, counts as a failed read of that
+    // replica and the next one is tried.
+    private byte[] fetchDecoded(FileManifest.Chunk chunk) throws Exception {
+        int length = (int) chunk.getLength();
+        ByteBuffer stored = ByteBuffer.allocate(ChunkCodec.maxEncodedLength(length));
+        Exception lastError = null;
+        for (String server : replicaStats.rank(chunk.getServers())) {
+            int count;
+            try {
+                count = fetchRange(Collections.singletonList(server), chunk.getName(), 0, stored, ChunkChecksums.NONE);
+            } catch (Exception e) {
+                lastError = e;
+                continue;
+            }
+            try {
+                byte[] data = ChunkCodec.decode(chunk.getCodec(), stored.array(), 0, count, length);
+                long actual = ChunkChecksums.of(data, 0, data.length);
+                if (chunk.hasChecksum() && actual != chunk.getChecksum()) {
+                    throw ChunkChecksums.mismatch(chunk.getName(), chunk.getChecksum(), actual);
+                }
+                return data;
+            } catch (IOException e) {
+                replicaStats.recordFailure(server);
+                System.err.println("Decoding " + chunk.getName() + " from " + server + " failed: " + e.getMessage());
+                lastError = e;
+            }
+        }
+        throw lastError;
     }
 
     private void _downloadFile(String fileName, String outputDirectory, Consumer<Integer> progressCallback) throws Exception {
       
-        Map<String, List<String>> chunksWithLocations = metadataService.getFileChunks(fileName);
+        FileManifest manifest = metadataFor(fileName).getFileManifest(fileName);
         
-        if (chunksWithLocations == null || chunksWithLocations.isEmpty()) {
+        if (manifest == null || manifest.getChunks().isEmpty()) {
             throw new Exception("File '" + fileName + "' not found or no chunks registered.");
         }
+        List<FileManifest.Chunk> chunks = manifest.getChunks();
 
+        // Chunks land in <name>.part, and <name>.part.ckpt lists the ones that are on disk. A
+        // failed download leaves both behind, and the next attempt at the same version of the
+        // file fetches only what is missing. The finished file replaces any existing one.
         File outputFile = new File(outputDirectory, fileName);
         Path outputPath = outputFile.toPath();
-        if (Files.exists(outputPath)) {
-            
-            Files.delete(outputPath); 
-            // Option 2: Rename existing file to prevent accidental overwrite
-            // int count = 0;
-            // Path tempPath = outputPath;
-            // while (Files.exists(tempPath)) {
-            //     tempPath = Paths.get(outputFile.getParent(), fileName + "(" + (++count) + ")");
-            // }
-            // outputFile = tempPath.toFile();
-            // outputPath = outputFile.toPath();
-        }
+        File partFile = new File(outputDirectory, fileName + ".part");
         Files.createDirectories(outputPath.getParent()); 
+        TransferCheckpoint checkpoint = TransferCheckpoint.open(Paths.get(outputDirectory, fileName + ".part.ckpt"),
+                "download\t" + manifestFingerprint(manifest));
+        boolean knownLengths = manifest.hasChunkLengths();
+        long[] offsets = chunkOffsets(manifest);
+        long expectedLength = offsets[chunks.size()];
+        if (!checkpoint.entries().isEmpty() && partFile.length() < expectedLength) {
+            // The chunks it lists are no longer on disk (a missing .part has length 0).
+            checkpoint.delete();
+            checkpoint = TransferCheckpoint.open(Paths.get(outputDirectory, fileName + ".part.ckpt"),
+                    "download\t" + manifestFingerprint(manifest));
+        }
+        Map<Integer, Long> resumed = new HashMap<>();
+        for (String entry : checkpoint.entries()) {
+            String[] fields = entry.split("\t");
+            resumed.put(Integer.parseInt(fields[0]), Long.parseLong(fields[1]));
+        }
+        if (resumed.isEmpty()) {
+            Files.deleteIfExists(partFile.toPath());
+        } else {
+            System.out.println("Resuming download of '" + fileName + "': " + resumed.size() + " of " + manifest.getChunks().size() + " chunks already done.");
+        }
       
-        List<String> sortedChunkNames = new ArrayList<>(chunksWithLocations.keySet());
-        sortedChunkNames.sort((c1, c2) -> {
-            int index1 = Integer.parseInt(c1.substring(c1.lastIndexOf('_') + 1));
-            int index2 = Integer.parseInt(c2.substring(c2.lastIndexOf('_') + 1));
-            return Integer.compare(index1, index2);
-        });
+        for (FileManifest.Chunk chunk : chunks) {
+            if (chunk.getServers().isEmpty()) {
+                throw new Exception("No available storage server for chunk: " + chunk.getName());
+            }
+        }
+
+        int totalChunks = chunks.size();
+        List<Integer> fetchOrder = interleaveByServer(chunks);
+        Semaphore window = new Semaphore(downloadConcurrency);
+        AtomicInteger chunksDone = new AtomicInteger();
+        AtomicLong fileLength = new AtomicLong();
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        List<Future<?>> pending = new ArrayList<>(totalChunks);
+
+        try (RandomAccessFile raf = new RandomAccessFile(partFile, "rw")) {
+            // Each chunk owns a fixed slot in the file.
+            raf.setLength(expectedLength);
+            FileChannel channel = raf.getChannel();
+            // Only checkpoint data that is on disk.
+            TransferCheckpoint downloadCheckpoint = checkpoint;
+            CheckpointBatch<Long> written = new CheckpointBatch<>(batch -> {
+                channel.force(false);
+                for (Map.Entry<Integer, Long> entry : batch.entrySet()) {
+                    downloadCheckpoint.append(entry.getKey() + "\t" + entry.getValue());
+                }
+            });
+            for (int chunkIndex : fetchOrder) {
+                FileManifest.Chunk chunk = chunks.get(chunkIndex);
+                Long resumedLength = resumed.get(chunkIndex);
+                if (resumedLength != null) {
+                    fileLength.accumulateAndGet(offsets[chunkIndex] + resumedLength, Math::max);
+                    reportProgress(progressCallback, chunksDone.incrementAndGet(), totalChunks);
+                    continue;
+                }
+                window.acquire();
+                if (failure.get() != null) {
+                    break;
+                }
+                pending.add(executorService.submit(() -> {
+                    try {
+                        long offset = offsets[chunkIndex];
+                        long chunkLength = fetchChunkCached(manifest, chunk, channel, offset);
+                        if (knownLengths && chunkLength != chunk.getLength()) {
+                            throw new IOException("Chunk " + chunk.getName() + " is " + chunkLength + " bytes, expected " + chunk.getLength());
+                        }
+                        fileLength.accumulateAndGet(offset + chunkLength, Math::max);
+                        written.add(chunkIndex, chunkLength);
+                        reportProgress(progressCallback, chunksDone.incrementAndGet(), totalChunks);
+                    } catch (Exception e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        window.release();
+                    }
+                }));
+            }
+            for (Future<?> f : pending) {
+                f.get();
+            }
+            if (failure.get() != null) {
+                // Keep what did arrive for the next attempt.
+                try {
+                    written.flush();
+                } catch (Exception e) {
+                    failure.get().addSuppressed(e);
+                }
+                throw failure.get();
+            }
+            channel.truncate(fileLength.get());
+        } finally {
+            checkpoint.close();
+        }
+        Files.move(partFile.toPath(), outputPath, StandardCopyOption.REPLACE_EXISTING);
+        checkpoint.delete();
+    }
+
+    // Serves the chunk from the cache if it can; otherwise fetches it and reads it back from
+    // the output (still in the page cache) to cache it. Compressed chunks are decoded in
+    // memory and written out from there.
+    private long fetchChunkCached(FileManifest manifest, FileManifest.Chunk chunk, FileChannel channel, long offset) throws Exception {
+        ChunkCache cache = chunkCache;
+        byte[] data = cache != null ? cachedChunk(cache, manifest, chunk) : null;
+        if (data == null && chunk.getCodec() != ChunkCodec.NONE) {
+            data = fetchDecoded(chunk);
+            if (cache != null && isCacheable(manifest, chunk)) {
+                cache.put(cacheKey(manifest, chunk), data);
+            }
+        }
+        if (data != null) {
+            writeFully(channel, ByteBuffer.wrap(data), offset);
+            return data.length;
+        }
+        if (cache == null) {
+            return fetchFromReplicas(chunk.getServers(), chunk.getName(), chunk.getChecksum(), channel, offset);
+        }
+        long chunkLength = fetchFromReplicas(chunk.getServers(), chunk.getName(), chunk.getChecksum(), channel, offset);
+        if (isCacheable(manifest, chunk)) {
+            ByteBuffer readBack = ByteBuffer.allocate((int) chunkLength);
+            while (readBack.hasRemaining()) {
+                if (channel.read(readBack, offset + readBack.position()) < 0) {
+                    break;
+                }
+            }
+            cache.put(cacheKey(manifest, chunk), readBack.array());
+        }
+        return chunkLength;
+    }
+
+    // Where each chunk starts in the file, plus the end of the last one. Files uploaded before
+    // chunk lengths were recorded have CHUNK_SIZE slots, so their end is an upper bound.
+    private static long[] chunkOffsets(FileManifest manifest) {
+        List<FileManifest.Chunk> chunks = manifest.getChunks();
+        boolean knownLengths = manifest.hasChunkLengths();
+        long[] offsets = new long[chunks.size() + 1];
+        for (int i = 0; i < chunks.size(); i++) {
+            offsets[i + 1] = offsets[i] + (knownLengths ? chunks.get(i).getLength() : CHUNK_SIZE);
+        }
+        return offsets;
+    }
+
+    // Identifies a version of a file by its chunk names and lengths. Content-addressed files get
+    // a new fingerprint whenever their content changes; index-named chunks of a file
+    // re-uploaded under the same name and size look the same.
+    private static String manifestFingerprint(FileManifest manifest) {
+        StringBuilder layout = new StringBuilder(manifest.getFileName()).append('\n').append(manifest.getFileSize());
+        for (FileManifest.Chunk chunk : manifest.getChunks()) {
+            layout.append('\n').append(chunk.getName()).append(' ').append(chunk.getLength());
+        }
+        byte[] bytes = layout.toString().getBytes(StandardCharsets.UTF_8);
+        return contentId(bytes, 0, bytes.length);
+    }
+
+    // Orders chunk indexes so that consecutive fetches alternate between the servers holding them,
+    // which keeps every server busy instead of draining one server's chunks before the next.
+    private static List<Integer> interleaveByServer(List<FileManifest.Chunk> chunks) {
+        Map<String, List<Integer>> byServer = new LinkedHashMap<>();
+        for (int i = 0; i < chunks.size(); i++) {
+            String server = chunks.get(i).getServers().get(0);
+            byServer.computeIfAbsent(server, k -> new ArrayList<>()).add(i);
+        }
+        List<Integer> order = new ArrayList<>(chunks.size());
+        for (int round = 0; order.size() < chunks.size(); round++) {
+            for (List<Integer> serverChunks : byServer.values()) {
+                if (round < serverChunks.size()) {
+                    order.add(serverChunks.get(round));
+                }
+            }
+        }
+        return order;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer data, long position) throws IOException {
+        while (data.hasRemaining()) {
+            position += channel.write(data, position);
+        }
+    }
+
+    // Writes one chunk to all its replica servers in parallel. A replica that fails is left
+    // out of the returned list; the chunk only fails if no replica could be written.
+    private List<String> putReplicas(List<String> replicas, String chunkId, byte[] data, int length, long checksum) throws Exception {
+        List<Future<?>> extraCopies = new ArrayList<>(replicas.size() - 1);
+        for (String replica : replicas.subList(1, replicas.size())) {
+            extraCopies.add(executorService.submit(() -> {
+                putChunk(replica, chunkId, data, length, checksum);
+                return null;
+            }));
+        }
+        List<String> stored = new ArrayList<>(replicas.size());
+        Exception lastError = null;
+        try {
+            putChunk(replicas.get(0), chunkId, data, length, checksum);
+            stored.add(replicas.get(0));
+        } catch (Exception e) {
+            lastError = e;
+        }
+        for (int i = 0; i < extraCopies.size(); i++) {
+            try {
+                extraCopies.get(i).get();
+                stored.add(replicas.get(i + 1));
+            } catch (ExecutionException e) {
+                lastError = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+        }
+        if (stored.isEmpty()) {
+            throw lastError;
+        }
+        if (stored.size() < replicas.size()) {
+            System.err.println("Warning: chunk " + chunkId + " stored on " + stored.size() + " of " + replicas.size()
+                    + " replicas: " + lastError.getMessage());
+        }
+        return stored;
+    }
+
+    // Reads a chunk from the best-ranked replica, falling back to the others in rank order.
+    // What lands in channel is checked against checksum (NONE to skip the check), and a copy
+    // that doesn't match counts as a failed read of that replica.
+    private long fetchFromReplicas(List<String> replicas, String chunkId, long checksum, FileChannel channel, long offset) throws Exception {
+        List<String> ranked = replicaStats.rank(replicas);
+        int next = 0;
+        Exception lastError = null;
+        if (hedgedReads && ranked.size() > 1) {
+            try {
+                long length = hedgedFetch(ranked.get(0), ranked.get(1), chunkId, channel, offset);
+                verify(chunkId, checksum, channel, offset, length);
+                return length;
+            } catch (ChunkCorruptException e) {
+                // Either replica may have sent the bad bytes; retry both one at a time.
+                lastError = e;
+            } catch (Exception e) {
+                lastError = e;
+                next = 2;
+            }
+        }
+        for (; next < ranked.size(); next++) {
+            String server = ranked.get(next);
+            try {
+                long length = timedFetch(server, chunkId, null, () -> fetchChunk(server, chunkId, channel, offset));
+                verify(chunkId, checksum, channel, offset, length);
+                return length;
+            } catch (ChunkCorruptException e) {
+                replicaStats.recordFailure(server);
+                System.err.println("Reading " + chunkId + " from " + server + " failed: " + e.getMessage());
+                lastError = e;
+            } catch (Exception e) {
+                lastError = e;
+            }
+        }
+        throw lastError;
+    }
+
+    private static void verify(String chunkId, long checksum, FileChannel channel, long offset, long length) throws IOException {
+        if (checksum != ChunkChecksums.NONE) {
+            long actual = ChunkChecksums.of(channel, offset, length);
+            if (actual != checksum) {
+                throw new ChunkCorruptException(ChunkChecksums.mismatch(chunkId, checksum, actual).getMessage());
+            }
+        }
+    }
+
+    private static class ChunkCorruptException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ChunkCorruptException(String message) {
+            super(message);
+        }
+    }
+
+    // Finished chunks waiting to be checkpointed, by index. The flush action runs with the
+    // batch's lock held, so batches are recorded one at a time and in order.
+    private static final class CheckpointBatch<T> {
+        interface Flush<T> {
+            void record(Map<Integer, T> batch) throws Exception;
+        }
+
+        private final Flush<T> flush;
+        private Map<Integer, T> batch = new HashMap<>();
+        private long oldest;
+
+        CheckpointBatch(Flush<T> flush) {
+            this.flush = flush;
+        }
 
-        long bytesDownloaded = 0;
-        try (FileOutputStream fos = new FileOutputStream(outputFile)) {
-            for (int i = 0; i < sortedChunkNames.size(); i++) {
-                String chunkName = sortedChunkNames.get(i);
-                List<String> storageServerNames = chunksWithLocations.get(chunkName);
-                
-                if (storageServerNames == null || storageServerNames.isEmpty()) {
-                    throw new Exception("No available storage server for chunk: " + chunkName);
+        synchronized void add(int index, T chunk) throws Exception {
+            if (batch.isEmpty()) {
+                oldest = System.nanoTime();
+            }
+            batch.put(index, chunk);
+            if (batch.size() >= CHECKPOINT_BATCH_CHUNKS
+                    || System.nanoTime() - oldest >= TimeUnit.MILLISECONDS.toNanos(CHECKPOINT_BATCH_MS)) {
+                flush();
+            }
+        }
+
+        synchronized void flush() throws Exception {
+            if (!batch.isEmpty()) {
+                flush.record(batch);
+                batch = new HashMap<>();
+            }
+        }
+    }
+
+    // Starts on the first replica and, if it hasn't finished within its tail-latency estimate
+    // (or fails), starts the second. Each reads into its own buffer and only the winner's is
+    // written to channel, so the loser is aborted if it streams and otherwise left to finish
+    // in the background; it can't touch channel either way.
+    private long hedgedFetch(String first, String second, String chunkId, FileChannel channel, long offset) throws Exception {
+        CompletionService<ByteBuffer> race = new ExecutorCompletionService<>(executorService);
+        ReadAttempt firstAttempt = new ReadAttempt();
+        ReadAttempt secondAttempt = new ReadAttempt();
+        race.submit(() -> timedFetch(first, chunkId, firstAttempt, () -> readChunk(first, chunkId, firstAttempt)));
+        int running = 1;
+        boolean hedged = false;
+        Future<ByteBuffer> done = race.poll(replicaStats.hedgeDelayNanos(first), TimeUnit.NANOSECONDS);
+        if (done == null) {
+            race.submit(() -> timedFetch(second, chunkId, secondAttempt, () -> readChunk(second, chunkId, secondAttempt)));
+            running++;
+            hedged = true;
+        }
+        Exception lastError = null;
+        while (running > 0) {
+            if (done == null) {
+                done = race.take();
+            }
+            running--;
+            try {
+                ByteBuffer data = done.get();
+                firstAttempt.cancel();
+                secondAttempt.cancel();
+                long length = data.remaining();
+                writeFully(channel, data, offset);
+                return length;
+            } catch (ExecutionException e) {
+                lastError = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                if (!hedged) {
+                    race.submit(() -> timedFetch(second, chunkId, secondAttempt, () -> readChunk(second, chunkId, secondAttempt)));
+                    running++;
+                    hedged = true;
                 }
-                
-                String storageServerId = storageServerNames.get(0); 
-                StorageService storageService = (StorageService) registry.lookup(storageServerId);
+            }
+            done = null;
+        }
+        throw lastError;
+    }
 
-                byte[] chunkData = storageService.downloadChunk(chunkName); 
-                fos.write(chunkData);
-                
-                bytesDownloaded += chunkData.length;
-                int progress = (int) (((i + 1.0) / sortedChunkNames.size()) * 100); 
-                if (progressCallback != null) {
-                    progressCallback.accept(progress);
+    private interface ChunkRead<T> {
+        T read() throws Exception;
+    }
+
+    // Runs read against one replica, feeding its latency or failure into replicaStats.
+    private <T> T timedFetch(String storageServerId, String chunkId, ReadAttempt attempt, ChunkRead<T> read) throws Exception {
+        replicaStats.begin(storageServerId);
+        long start = System.nanoTime();
+        try {
+            T result = read.read();
+            replicaStats.recordSuccess(storageServerId, System.nanoTime() - start);
+            return result;
+        } catch (Exception e) {
+            if (attempt == null || !attempt.isCancelled()) {
+                replicaStats.recordFailure(storageServerId);
+                System.err.println("Reading " + chunkId + " from " + storageServerId + " failed: " + e.getMessage());
+            }
+            throw e;
+        } finally {
+            replicaStats.end(storageServerId);
+        }
+    }
+
+    // Lets a hedged read be aborted from another thread by closing its connection.
+    private static class ReadAttempt {
+        private Closeable connection;
+        private boolean cancelled;
+
+        synchronized void opened(Closeable connection) {
+            this.connection = connection;
+            if (cancelled) {
+                closeQuietly();
+            }
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            closeQuietly();
+        }
+
+        synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        private void closeQuietly() {
+            if (connection != null) {
+                try {
+                    connection.close();
+                } catch (IOException e) {
+                    // Already closed.
                 }
             }
         }
     }
+
+    // Sends length bytes of data to a storage server, over its streaming channel when it has
+    // one. The server refuses the chunk if it doesn't arrive with the given checksum.
+    private void putChunk(String storageServerId, String chunkId, byte[] data, int length, long checksum) throws Exception {
+        int transferPort = transferPortOf(storageServerId);
+        if (transferPort > 0) {
+            overChannel(storageServerId, transferPort, port -> {
+                ChunkTransferClient.upload(host, port, chunkId, ByteBuffer.wrap(data, 0, length), checksum);
+                return null;
+            });
+        } else {
+            // RMI sends the whole array, so a short chunk needs an exact-length copy.
+            byte[] chunkData = length == data.length ? data : Arrays.copyOf(data, length);
+            withStorage(storageServerId, storage -> {
+                storage.uploadChunk(chunkId, chunkData, checksum);
+                return null;
+            });
+        }
+    }
+
+    // Writes a chunk into channel at offset and returns its length.
+    private long fetchChunk(String storageServerId, String chunkId, FileChannel channel, long offset) throws Exception {
+        int transferPort = transferPortOf(storageServerId);
+        if (transferPort > 0) {
+            return overChannel(storageServerId, transferPort, port -> ChunkTransferClient.download(host, port, chunkId, channel, offset));
+        }
+        byte[] chunkData = withStorage(storageServerId, storage -> storage.downloadChunk(chunkId));
+        writeFully(channel, ByteBuffer.wrap(chunkData), offset);
+        return chunkData.length;
+    }
+
+    // Reads a whole chunk into a buffer of its own. attempt can abort a streaming read; an RMI
+    // read can't be interrupted and just runs to completion.
+    private ByteBuffer readChunk(String storageServerId, String chunkId, ReadAttempt attempt) throws Exception {
+        int transferPort = transferPortOf(storageServerId);
+        if (transferPort > 0) {
+            return overChannel(storageServerId, transferPort, port -> ChunkTransferClient.download(host, port, chunkId, attempt::opened));
+        }
+        return ByteBuffer.wrap(withStorage(storageServerId, storage -> storage.downloadChunk(chunkId)));
+    }
+
+    // 0 if the server has no streaming channel. Cached until the port stops answering: storage
+    // servers bind an ephemeral port by default, so a restarted one has a new one.
+    private int transferPortOf(String storageServerId) throws Exception {
+        Integer transferPort = transferPorts.get(storageServerId);
+        if (transferPort == null) {
+            transferPort = withStorage(storageServerId, StorageService::getTransferPort);
+            transferPorts.put(storageServerId, transferPort);
+        }
+        return transferPort;
+    }
+
+    private interface ChannelCall<T> {
+        T call(int transferPort) throws IOException;
+    }
+
+    // Runs a ChunkTransferClient call against transferPort. If nothing listens there any more,
+    // the port is forgotten and asked for again, and the call is retried once if it moved.
+    private <T> T overChannel(String storageServerId, int transferPort, ChannelCall<T> call) throws Exception {
+        try {
+            return call.call(transferPort);
+        } catch (java.net.ConnectException e) {
+            transferPorts.remove(storageServerId);
+            int moved = transferPortOf(storageServerId);
+            if (moved <= 0 || moved == transferPort) {
+                throw e;
+            }
+            return call.call(moved);
+        }
+    }
+
+    private interface StorageCall<T> {
+        T call(StorageService storage) throws Exception;
+    }
+
+    // Runs call on the server's cached stub. A restarted storage server exports a new object,
+    // which makes the old stub fail without reaching it; the stub is then looked up again once.
+    private <T> T withStorage(String storageServerId, StorageCall<T> call) throws Exception {
+        try {
+            return call.call(lookupStorage(storageServerId));
+        } catch (NoSuchObjectException | java.rmi.ConnectException e) {
+            storageStubs.remove(storageServerId);
+            transferPorts.remove(storageServerId);
+            return call.call(lookupStorage(storageServerId));
+        }
+    }
+
+    private StorageService lookupStorage(String storageServerId) throws Exception {
+        StorageService storageService = storageStubs.get(storageServerId);
+        if (storageService == null) {
+            storageService = (StorageService) registry.lookup(storageServerId);
+            storageStubs.put(storageServerId, storageService);
+        }
+        return storageService;
+    }
     
     // Remember to shut down the executor service when the application exits
     public void shutdown() {
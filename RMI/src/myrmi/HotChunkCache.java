@@ -0,0 +1,170 @@
+package myrmi;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Storage-side read cache for popular chunks. Cached chunks live in direct buffers, so a read
+// storm on one file neither re-reads the disk for every client nor fills the heap with chunk
+// copies for the collector to chase. A chunk is only cached on its second request among the
+// recently requested ones; one-off reads stream straight from disk as before and don't push
+// hot chunks out. Concurrent misses on the same chunk share a single disk read.
+//
+// Chunks are checked against their stored checksum as they are loaded, so a damaged chunk
+// fails the request (and the client moves on to another replica) rather than being cached.
+// Writers call invalidate() once a chunk has been rewritten. A load that was running
+// while the chunk changed is handed to its waiters but not kept.
+public class HotChunkCache {
+    private static final int RECENT_REQUESTS = 4096;
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, ByteBuffer> cached = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Boolean> recent = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > RECENT_REQUESTS;
+        }
+    };
+    private final ConcurrentHashMap<String, CompletableFuture<ByteBuffer>> loading = new ConcurrentHashMap<>();
+    private long cachedBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong sharedLoads = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    // A budget of 0 turns the cache off.
+    public HotChunkCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    // The whole chunk as a read-only buffer positioned at 0, or null if it isn't hot yet (or
+    // is larger than the budget) and should be streamed from the store instead. A miss loads
+    // the chunk from the caller's open view of it.
+    public ByteBuffer get(String chunkId, ChunkStore.ChunkView chunk) throws IOException {
+        if (maxBytes <= 0) {
+            return null;
+        }
+        synchronized (this) {
+            ByteBuffer buffer = cached.get(chunkId);
+            if (buffer != null) {
+                hits.incrementAndGet();
+                return buffer.duplicate();
+            }
+            if (recent.put(chunkId, Boolean.TRUE) == null) {
+                return null;
+            }
+        }
+        CompletableFuture<ByteBuffer> load = new CompletableFuture<>();
+        CompletableFuture<ByteBuffer> running = loading.putIfAbsent(chunkId, load);
+        if (running != null) {
+            sharedLoads.incrementAndGet();
+            ByteBuffer buffer = await(running);
+            return buffer != null ? buffer.duplicate() : null;
+        }
+        try {
+            loads.incrementAndGet();
+            ByteBuffer buffer = read(chunkId, chunk);
+            if (buffer != null) {
+                admit(chunkId, buffer, load);
+            }
+            load.complete(buffer);
+            return buffer != null ? buffer.duplicate() : null;
+        } catch (IOException | RuntimeException e) {
+            load.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(chunkId, load);
+        }
+    }
+
+    public synchronized void invalidate(String chunkId) {
+        ByteBuffer removed = cached.remove(chunkId);
+        if (removed != null) {
+            cachedBytes -= removed.capacity();
+        }
+        loading.remove(chunkId);
+    }
+
+    private synchronized void admit(String chunkId, ByteBuffer buffer, CompletableFuture<ByteBuffer> load) {
+        if (loading.get(chunkId) != load) {
+            return; // invalidated while loading
+        }
+        ByteBuffer previous = cached.put(chunkId, buffer);
+        cachedBytes += buffer.capacity() - (previous != null ? previous.capacity() : 0);
+        // Evicted buffers are released by the collector once the last reader drops them.
+        Iterator<ByteBuffer> eldest = cached.values().iterator();
+        while (cachedBytes > maxBytes && eldest.hasNext()) {
+            cachedBytes -= eldest.next().capacity();
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private ByteBuffer read(String chunkId, ChunkStore.ChunkView chunk) throws IOException {
+        if (chunk.length() > maxBytes) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect((int) chunk.length());
+        while (buffer.hasRemaining()) {
+            if (chunk.read(buffer, buffer.position()) < 0) {
+                break; // truncated under us; keep what is there
+            }
+        }
+        buffer.flip();
+        if (chunk.checksum() != ChunkChecksums.NONE) {
+            long actual = ChunkChecksums.of(buffer);
+            if (actual != chunk.checksum()) {
+                throw ChunkChecksums.mismatch(chunkId, chunk.checksum(), actual);
+            }
+        }
+        return buffer.slice().asReadOnlyBuffer();
+    }
+
+    private static ByteBuffer await(CompletableFuture<ByteBuffer> load) throws IOException {
+        try {
+            return load.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a chunk read");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getLoads() {
+        return loads.get();
+    }
+
+    public long getSharedLoads() {
+        return sharedLoads.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("hot chunk cache: %d hits, %d disk loads, %d shared loads, %d evictions, %d of %d MB used",
+                hits.get(), loads.get(), sharedLoads.get(), evictions.get(), getCachedBytes() >> 20, maxBytes >> 20);
+    }
+}
@@ -0,0 +1,104 @@
+package myrmi;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Weighted placement from heartbeat stats. Servers that are nearly full or have too many
+// requests in flight are skipped; the rest are picked with probability proportional to
+// free space / (1 + in-flight requests), without repeating a server within one chunk.
+// Servers that haven't reported yet get the average weight of those that have.
+public class LoadAwarePlacement implements PlacementPolicy {
+    public static final long DEFAULT_MIN_FREE_BYTES = 256L * 1024 * 1024;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 64;
+
+    private final long minFreeBytes;
+    private final int maxInFlight;
+
+    public LoadAwarePlacement() {
+        this(DEFAULT_MIN_FREE_BYTES, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    public LoadAwarePlacement(long minFreeBytes, int maxInFlight) {
+        this.minFreeBytes = minFreeBytes;
+        this.maxInFlight = maxInFlight;
+    }
+
+    @Override
+    public List<List<String>> place(int chunkCount, int replicas, List<StorageStats> servers) throws RemoteException {
+        List<StorageStats> eligible = new ArrayList<>(servers.size());
+        for (StorageStats stats : servers) {
+            if (!stats.isReported() || stats.getFreeBytes() >= minFreeBytes) {
+                eligible.add(stats);
+            }
+        }
+        if (eligible.isEmpty()) {
+            throw new RemoteException("No storage server has at least " + (minFreeBytes >> 20) + " MB free.");
+        }
+        // Hot servers only take new chunks when every server with room is hot.
+        List<StorageStats> cool = new ArrayList<>(eligible.size());
+        for (StorageStats stats : eligible) {
+            if (stats.getInFlightRequests() < maxInFlight) {
+                cool.add(stats);
+            }
+        }
+        if (!cool.isEmpty()) {
+            eligible = cool;
+        }
+
+        double[] weights = weigh(eligible);
+        int copies = Math.min(replicas, eligible.size());
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        List<List<String>> placement = new ArrayList<>(chunkCount);
+        double[] remaining = new double[weights.length];
+        for (int i = 0; i < chunkCount; i++) {
+            System.arraycopy(weights, 0, remaining, 0, weights.length);
+            double total = 0;
+            for (double w : remaining) {
+                total += w;
+            }
+            List<String> chunkServers = new ArrayList<>(copies);
+            for (int r = 0; r < copies; r++) {
+                double pick = random.nextDouble() * total;
+                int chosen = -1;
+                for (int k = 0; k < remaining.length; k++) {
+                    if (remaining[k] == 0) {
+                        continue;
+                    }
+                    chosen = k; // rounding can run past the end; keep the last candidate
+                    if (pick < remaining[k]) {
+                        break;
+                    }
+                    pick -= remaining[k];
+                }
+                chunkServers.add(eligible.get(chosen).getServerName());
+                total -= remaining[chosen];
+                remaining[chosen] = 0;
+            }
+            placement.add(chunkServers);
+        }
+        return placement;
+    }
+
+    private static double[] weigh(List<StorageStats> servers) {
+        double[] weights = new double[servers.size()];
+        double reportedSum = 0;
+        int reported = 0;
+        for (int i = 0; i < weights.length; i++) {
+            StorageStats stats = servers.get(i);
+            if (stats.isReported()) {
+                weights[i] = Math.max(1, stats.getFreeBytes()) / (1.0 + stats.getInFlightRequests());
+                reportedSum += weights[i];
+                reported++;
+            }
+        }
+        double fallback = reported == 0 ? 1 : reportedSum / reported;
+        for (int i = 0; i < weights.length; i++) {
+            if (!servers.get(i).isReported()) {
+                weights[i] = fallback;
+            }
+        }
+        return weights;
+    }
+}
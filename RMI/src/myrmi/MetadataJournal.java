@@ -0,0 +1,362 @@
+package myrmi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+// Append-only log of metadata mutations. Each record is framed as
+// length (4 bytes) | CRC32 of payload (4 bytes) | payload, so a torn tail left by a crash
+// is detected and dropped on replay. Appends are group-committed: callers enqueue a
+// record and wait, while a single writer thread flushes everything queued so far with
+// one fsync. The log is split into generations (metadata.journal.<n>); rolling to a new
+// generation lets the owner write a snapshot and then drop the sealed ones.
+public class MetadataJournal {
+    private static final byte LOCATIONS_CHANGED = 2;
+    private static final byte SERVER_REGISTERED = 3;
+    private static final byte MANIFEST_COMMITTED = 4;
+    private static final byte FILE_DELETED = 5;
+
+    public interface Replayer {
+        void manifestCommitted(FileManifest manifest);
+        void locationsChanged(String serverName, List<String> added, List<String> removed);
+        void serverRegistered(String serverName, String url);
+        void fileDeleted(String fileName);
+    }
+
+    private final Path directory;
+    private final String prefix;
+    private final Object ioLock = new Object();
+    private final List<byte[]> queue = new ArrayList<>();
+    private FileChannel channel;
+    private long generation;
+    private long appendedSeq;
+    private long durableSeq;
+    private long recordsInGeneration;
+    private IOException writeError;
+    private boolean closed;
+
+    public MetadataJournal(Path directory, String prefix) {
+        this.directory = directory;
+        this.prefix = prefix;
+    }
+
+    // Replays every existing generation in order, then starts a fresh one for new appends.
+    // Returns the number of records replayed.
+    public long open(Replayer replayer) throws IOException {
+        long replayed = 0;
+        TreeMap<Long, Path> generations = listGenerations();
+        for (Path path : generations.values()) {
+            if (Files.size(path) == 0) {
+                Files.delete(path); // left behind by a restart with nothing to log
+                continue;
+            }
+            replayed += replay(path, replayer);
+        }
+        generation = generations.isEmpty() ? 1 : generations.lastKey() + 1;
+        channel = openGeneration(generation);
+
+        Thread writer = new Thread(this::writeLoop, "metadata-journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+        return replayed;
+    }
+
+    // Stores the manifest without locations; those are journaled separately.
+    public long logManifestCommitted(FileManifest manifest) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(MANIFEST_COMMITTED);
+        out.writeUTF(manifest.getFileName());
+        out.writeLong(manifest.getFileSize());
+        out.writeInt(manifest.getChunks().size());
+        for (FileManifest.Chunk chunk : manifest.getChunks()) {
+            out.writeUTF(chunk.getName());
+            out.writeLong(chunk.getLength());
+        }
+        out.writeLong(manifest.getVersion());
+        for (FileManifest.Chunk chunk : manifest.getChunks()) {
+            out.writeLong(chunk.getChecksum());
+        }
+        for (FileManifest.Chunk chunk : manifest.getChunks()) {
+            out.writeByte(chunk.getCodec());
+        }
+        return enqueue(bytes.toByteArray());
+    }
+
+    public long logLocationsChanged(String serverName, List<String> added, List<String> removed) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(LOCATIONS_CHANGED);
+        out.writeUTF(serverName);
+        writeList(out, added);
+        writeList(out, removed);
+        return enqueue(bytes.toByteArray());
+    }
+
+    public long logFileDeleted(String fileName) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(FILE_DELETED);
+        out.writeUTF(fileName);
+        return enqueue(bytes.toByteArray());
+    }
+
+    public long logServerRegistered(String serverName, String url) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(SERVER_REGISTERED);
+        out.writeUTF(serverName);
+        out.writeUTF(url);
+        return enqueue(bytes.toByteArray());
+    }
+
+    // Blocks until the record with the given sequence number (and everything before it) is on disk.
+    public synchronized void awaitDurable(long seq) throws IOException {
+        while (durableSeq < seq && writeError == null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for journal sync", e);
+            }
+        }
+        if (writeError != null) {
+            throw writeError;
+        }
+    }
+
+    public synchronized long recordsInCurrentGeneration() {
+        return recordsInGeneration;
+    }
+
+    // Seals the current generation and starts a new one. Returns the sealed generation number.
+    public long roll() throws IOException {
+        synchronized (ioLock) {
+            long sealed;
+            synchronized (this) {
+                sealed = generation;
+                generation++;
+                recordsInGeneration = 0;
+            }
+            channel.close();
+            channel = openGeneration(sealed + 1);
+            return sealed;
+        }
+    }
+
+    // Removes sealed generations once a snapshot covering them is durable.
+    public void deleteUpTo(long sealedGeneration) throws IOException {
+        for (Map.Entry<Long, Path> entry : listGenerations().entrySet()) {
+            if (entry.getKey() <= sealedGeneration) {
+                Files.deleteIfExists(entry.getValue());
+            }
+        }
+    }
+
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+    }
+
+    private synchronized long enqueue(byte[] payload) throws IOException {
+        if (closed) {
+            throw new IOException("Journal is closed");
+        }
+        if (writeError != null) {
+            throw writeError;
+        }
+        queue.add(payload);
+        recordsInGeneration++;
+        notifyAll();
+        return ++appendedSeq;
+    }
+
+    private void writeLoop() {
+        while (true) {
+            List<byte[]> batch;
+            long batchSeq;
+            synchronized (this) {
+                while (queue.isEmpty() && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (queue.isEmpty()) {
+                    return;
+                }
+                batch = new ArrayList<>(queue);
+                queue.clear();
+                batchSeq = appendedSeq;
+            }
+
+            IOException error = null;
+            try {
+                synchronized (ioLock) {
+                    ByteBuffer frames = frame(batch);
+                    while (frames.hasRemaining()) {
+                        channel.write(frames);
+                    }
+                    channel.force(false);
+                }
+            } catch (IOException e) {
+                System.err.println("Error writing metadata journal: " + e.getMessage());
+                error = e;
+            }
+
+            synchronized (this) {
+                if (error != null) {
+                    writeError = error;
+                } else {
+                    durableSeq = batchSeq;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    private static ByteBuffer frame(List<byte[]> batch) {
+        int total = 0;
+        for (byte[] payload : batch) {
+            total += 8 + payload.length;
+        }
+        ByteBuffer frames = ByteBuffer.allocate(total);
+        CRC32 crc = new CRC32();
+        for (byte[] payload : batch) {
+            crc.reset();
+            crc.update(payload);
+            frames.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+        }
+        frames.flip();
+        return frames;
+    }
+
+    private long replay(Path path, Replayer replayer) throws IOException {
+        long records = 0;
+        byte[] data = Files.readAllBytes(path);
+        ByteBuffer frames = ByteBuffer.wrap(data);
+        CRC32 crc = new CRC32();
+        while (frames.remaining() >= 8) {
+            int length = frames.getInt();
+            int checksum = frames.getInt();
+            if (length < 0 || length > frames.remaining()) {
+                break;
+            }
+            byte[] payload = new byte[length];
+            frames.get(payload);
+            crc.reset();
+            crc.update(payload);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            apply(payload, replayer);
+            records++;
+        }
+        if (frames.position() < data.length) {
+            System.err.println("Ignoring torn record at the end of " + path.getFileName());
+        }
+        return records;
+    }
+
+    private static void apply(byte[] payload, Replayer replayer) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        try {
+            byte type = in.readByte();
+            switch (type) {
+                case MANIFEST_COMMITTED: {
+                    String fileName = in.readUTF();
+                    long fileSize = in.readLong();
+                    int count = in.readInt();
+                    List<String> chunkNames = new ArrayList<>(count);
+                    long[] lengths = new long[count];
+                    for (int i = 0; i < count; i++) {
+                        chunkNames.add(in.readUTF());
+                        lengths[i] = in.readLong();
+                    }
+                    FileManifest manifest = new FileManifest(fileName, fileSize, in.readLong());
+                    long[] checksums = new long[count];
+                    for (int i = 0; i < count; i++) {
+                        checksums[i] = in.readLong();
+                    }
+                    for (int i = 0; i < count; i++) {
+                        manifest.addChunk(chunkNames.get(i), lengths[i], checksums[i], in.readByte(), Collections.emptyList());
+                    }
+                    replayer.manifestCommitted(manifest);
+                    break;
+                }
+                case LOCATIONS_CHANGED: {
+                    String serverName = in.readUTF();
+                    List<String> added = readList(in);
+                    replayer.locationsChanged(serverName, added, readList(in));
+                    break;
+                }
+                case SERVER_REGISTERED: {
+                    String serverName = in.readUTF();
+                    replayer.serverRegistered(serverName, in.readUTF());
+                    break;
+                }
+                case FILE_DELETED:
+                    replayer.fileDeleted(in.readUTF());
+                    break;
+                default:
+                    throw new IOException("Unknown journal record type " + type);
+            }
+        } catch (EOFException e) {
+            throw new IOException("Truncated journal record", e);
+        }
+    }
+
+    private static void writeList(DataOutputStream out, List<String> values) throws IOException {
+        out.writeInt(values.size());
+        for (String value : values) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static List<String> readList(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<String> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            values.add(in.readUTF());
+        }
+        return values;
+    }
+
+    private FileChannel openGeneration(long gen) throws IOException {
+        return FileChannel.open(directory.resolve(prefix + "." + gen),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private TreeMap<Long, Path> listGenerations() throws IOException {
+        TreeMap<Long, Path> generations = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, prefix + ".*")) {
+            for (Path path : stream) {
+                String suffix = path.getFileName().toString().substring(prefix.length() + 1);
+                try {
+                    generations.put(Long.parseLong(suffix), path);
+                } catch (NumberFormatException e) {
+                    // Not one of ours.
+                }
+            }
+        }
+        return generations;
+    }
+}
@@ -2,16 +2,35 @@ package myrmi;
 
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
+import java.rmi.server.ExportException;
 
 public class MetadataServerMain {
  public static void main(String[] args) {
      try {
-         MetadataServiceImpl metadataService = new MetadataServiceImpl();
-         Registry registry = LocateRegistry.createRegistry(1099); 
+         int replicationFactor = args.length > 0 ? Integer.parseInt(args[0]) : MetadataServiceImpl.DEFAULT_REPLICATION_FACTOR;
+         // "<i>/<n>" runs shard i of an n-way sharded namespace, see MetadataShards.
+         int shard = 0;
+         int shards = 1;
+         if (args.length > 2) {
+             String[] parts = args[2].split("/");
+             shard = Integer.parseInt(parts[0]);
+             shards = Integer.parseInt(parts[1]);
+         }
+         MetadataServiceImpl metadataService = new MetadataServiceImpl(replicationFactor, shard, shards);
+         if (args.length > 1 && args[1].equalsIgnoreCase("roundrobin")) {
+             metadataService.setPlacementPolicy(new RoundRobinPlacement());
+         }
+         Registry registry;
+         try {
+             registry = LocateRegistry.createRegistry(1099); 
+         } catch (ExportException e) {
+             // Another shard on this host already runs the registry.
+             registry = LocateRegistry.getRegistry(1099);
+         }
   
-         registry.rebind("MetadataService", metadataService);
+         registry.rebind(MetadataShards.bindingName(shard, shards), metadataService);
          
-         System.out.println("Metadata Server Ready!");
+         System.out.println(shards > 1 ? "Metadata Server shard " + shard + " of " + shards + " Ready!" : "Metadata Server Ready!");
      } catch (Exception e) {
          System.err.println("Metadata Server exception: " + e.toString());
          e.printStackTrace();
@@ -9,11 +9,27 @@ public interface MetadataService extends Remote {
 //    String getStorageServer(String fileName, long offset) throws RemoteException;
     String getStorageServerForChunk(String chunkName) throws RemoteException;
     List<String> listAvailableFiles() throws RemoteException;
+    FileListing listFiles(String prefix, String cursor, int limit) throws RemoteException; // Up to limit files starting with prefix, in name order after cursor (null = from the start)
+    FileListing listFiles(String prefix, String delimiter, String cursor, int limit) throws RemoteException; // As above, grouping names that continue past prefix with delimiter into common prefixes (see FileListing)
     void registerStorageServer(String name, String host, int port) throws RemoteException;
     void fileUploaded(String fileName, long fileSize, List<String> chunkNames) throws RemoteException;
     String getNextChunkServer() throws RemoteException;
     Map<String, List<String>> getFileChunks(String fileName) throws RemoteException;
     void chunkStored(String chunkName, String storageServerName) throws RemoteException;
     void registerChunk(String chunkName, String storageServerName) throws RemoteException; // Storage servers call this on startup
+    List<String> reserveChunkServers(int chunkCount) throws RemoteException; // Placement for a whole batch of chunks in one call
+    List<List<String>> reserveChunkPlacement(int chunkCount, int replicationFactor) throws RemoteException; // Distinct replica servers per chunk; 0 = server default
+    void commitFile(FileManifest manifest) throws RemoteException; // Publishes a file and all its chunk locations at once
+    String beginUpload(String fileName, long fileSize) throws RemoteException; // Opens a resumable upload session
+    Map<Integer, FileManifest.Chunk> resumeUpload(String sessionId) throws RemoteException; // Chunks stored so far by index; null if the session is gone
+    void chunksUploaded(String sessionId, Map<Integer, FileManifest.Chunk> chunks) throws RemoteException; // Records finished chunks and their locations
+    void commitUpload(String sessionId, FileManifest manifest) throws RemoteException; // commitFile, then closes the session
+    List<Integer> compareChunkInventory(String storageServerName, long[] bucketDigests) throws RemoteException; // Returns the ChunkInventory buckets that differ
+    void heartbeat(StorageStats stats) throws RemoteException; // Periodic capacity and load report from each storage server
+    FileManifest getFileManifest(String fileName) throws RemoteException; // Chunks in file order with their live locations; null if unknown
+    Map<String, List<String>> findChunks(List<String> chunkNames) throws RemoteException; // Live locations of the chunks that exist, for deduplicated uploads
+    void reportChunks(String storageServerName, List<Integer> buckets, byte[] chunkBatch, boolean lastBatch) throws RemoteException; // Bulk block report, see ChunkInventory.encodeBatch
+    void chunkCorrupt(String chunkName, String storageServerName) throws RemoteException; // The server found its copy damaged and discarded it
+    boolean deleteFile(String fileName) throws RemoteException; // False if unknown; its chunks are reclaimed by garbage collection
   
 }
\ No newline at end of file
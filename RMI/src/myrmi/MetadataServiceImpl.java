@@ -2,36 +2,298 @@ package myrmi;
 
 import java.io.*;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class MetadataServiceImpl extends UnicastRemoteObject implements MetadataService {
 
-    private Map<String, List<String>> fileToChunksMap; 
-    private Map<String, List<String>> chunkLocations; 
+    // Stored without locations, sorted by name so listings can page through the namespace.
+    private ConcurrentSkipListMap<String, FileManifest> fileManifests;
+    private final AtomicLong lastFileVersion = new AtomicLong();
+    private ChunkLocationIndex chunkLocations; 
     private Map<String, String> storageServers; 
+    // Chunks received so far in each server's in-progress batched block report.
+    private final Map<String, Set<String>> pendingReports = new ConcurrentHashMap<>();
+
+    private volatile PlacementPolicy placementPolicy = new LoadAwarePlacement();
+    private final Map<String, StorageStats> serverStats = new ConcurrentHashMap<>();
+    // Rebuilt whenever a server registers or reports, so placement calls don't copy anything.
+    private volatile List<StorageStats> placementView = Collections.emptyList();
+
+    // A server that misses heartbeats for HEARTBEAT_TIMEOUT_MS is declared dead: it drops out
+    // of placement and reads, and its chunks are re-replicated from the surviving copies.
+    // Its registration and locations are kept so it can rejoin with a heartbeat.
+    public static final long HEARTBEAT_TIMEOUT_MS = 10000;
+    private static final long LIVENESS_CHECK_MS = 1000;
+    private static final long REPAIR_RESCAN_MS = 30000; // retries failed repairs, see ReplicationManager.rescan
+    private final Map<String, Long> lastHeartbeat = new ConcurrentHashMap<>(); // System.nanoTime()
+    private final Set<String> deadServers = ConcurrentHashMap.newKeySet();
+    private final ReplicationManager replicationManager = new ReplicationManager(this);
+    private final ScheduledExecutorService maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "metadata-maintenance");
+        t.setDaemon(true);
+        return t;
+    });
+    private long lastRepairScan = System.nanoTime();
+
+    // Uploads in progress. Sessions live in memory only: the locations of their chunks are
+    // journaled as they arrive, which is all a client needs to resume from its own checkpoint
+    // after a metadata restart. Idle sessions expire after UPLOAD_SESSION_TTL_MS.
+    public static final long UPLOAD_SESSION_TTL_MS = 24L * 60 * 60 * 1000;
+    private static final long SESSION_EXPIRY_CHECK_MS = 60000;
+    private final Map<String, UploadSession> uploadSessions = new ConcurrentHashMap<>();
+
+    private static final class UploadSession {
+        final String fileName;
+        final long fileSize;
+        final Map<Integer, FileManifest.Chunk> chunks = new ConcurrentHashMap<>();
+        volatile long lastActivity = System.nanoTime();
+
+        UploadSession(String fileName, long fileSize) {
+            this.fileName = fileName;
+            this.fileSize = fileSize;
+        }
+    }
+    // Chunks no manifest, session or recent lookup refers to are deleted by the collector on
+    // its own thread, so slow storage servers never hold up the liveness checks.
+    private volatile ChunkGarbageCollector garbageCollector = new ChunkGarbageCollector(this);
+    private final ScheduledExecutorService collector = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "chunk-gc");
+        t.setDaemon(true);
+        return t;
+    });
+    // Chunks handed to deduplicating uploads by findChunks, which may commit them any time
+    // soon; copies the garbage collector is deleting; and copies it has deleted, until an
+    // upload naming one has been turned away. The last two are keyed by reclaimKey. All
+    // System.nanoTime().
+    private final Map<String, Long> recentlyFound = new ConcurrentHashMap<>();
+    private final Map<String, Long> reclaiming = new ConcurrentHashMap<>();
+    private final Map<String, Long> reclaimed = new ConcurrentHashMap<>();
+    // Chunks that manifests and upload sessions came to refer to since the collector's last
+    // referencedChunks(), so beginReclaim rechecks a batch without rescanning the namespace.
+    // Guarded by mutationLock.
+    private Set<String> referencedSinceSnapshot = new HashSet<>();
 
-    private AtomicInteger serverCounter = new AtomicInteger(0); 
     private String METADATA_FILE = "metadata.dat"; 
+    private String journalPrefix = "metadata.journal";
+    private static final long SNAPSHOT_EVERY = 1000; // journal records between snapshots
+    public static final int DEFAULT_REPLICATION_FACTOR = 2;
+    public static final int MAX_LISTING_PAGE = 1000; // files per listFiles call
+
+    private final int defaultReplicationFactor;
+    // This server's part of the namespace, see MetadataShards.
+    private final int shard;
+    private final int shards;
+
+    private MetadataJournal journal;
+    private final Object mutationLock = new Object();
+    private final AtomicBoolean compacting = new AtomicBoolean(false);
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "metadata-compactor");
+        t.setDaemon(true);
+        return t;
+    });
 
     public MetadataServiceImpl() throws RemoteException {
+        this(DEFAULT_REPLICATION_FACTOR);
+    }
+
+    public MetadataServiceImpl(int defaultReplicationFactor) throws RemoteException {
+        this(defaultReplicationFactor, 0, 1);
+    }
+
+    // Shard shard of shards keeps its snapshot and journal in files of its own, so several
+    // shards can share a working directory.
+    public MetadataServiceImpl(int defaultReplicationFactor, int shard, int shards) throws RemoteException {
         super();
-        fileToChunksMap = new ConcurrentHashMap<>();
-        chunkLocations = new ConcurrentHashMap<>();
+        if (defaultReplicationFactor < 1) {
+            throw new IllegalArgumentException("Replication factor must be at least 1.");
+        }
+        if (shards < 1 || shard < 0 || shard >= shards) {
+            throw new IllegalArgumentException("Invalid metadata shard " + shard + " of " + shards + ".");
+        }
+        this.defaultReplicationFactor = defaultReplicationFactor;
+        this.shard = shard;
+        this.shards = shards;
+        if (shards > 1) {
+            METADATA_FILE = "metadata-" + shard + "-of-" + shards + ".dat";
+            journalPrefix = "metadata-" + shard + "-of-" + shards + ".journal";
+        }
+        fileManifests = new ConcurrentSkipListMap<>();
+        chunkLocations = new ChunkLocationIndex();
         storageServers = new ConcurrentHashMap<>();
         loadMetadata(); 
+        openJournal();
+        for (FileManifest manifest : fileManifests.values()) {
+            lastFileVersion.accumulateAndGet(manifest.getVersion(), Math::max);
+        }
+        // Servers known from before a restart get a full timeout to check in.
+        long now = System.nanoTime();
+        for (String server : storageServers.keySet()) {
+            lastHeartbeat.put(server, now);
+        }
+        refreshPlacementView();
+        maintenance.scheduleWithFixedDelay(this::checkLiveness, LIVENESS_CHECK_MS, LIVENESS_CHECK_MS, TimeUnit.MILLISECONDS);
+        maintenance.scheduleWithFixedDelay(this::expireUploadSessions, SESSION_EXPIRY_CHECK_MS, SESSION_EXPIRY_CHECK_MS, TimeUnit.MILLISECONDS);
+        collector.scheduleWithFixedDelay(() -> garbageCollector.collect(), ChunkGarbageCollector.INTERVAL_MS,
+                ChunkGarbageCollector.INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public void setPlacementPolicy(PlacementPolicy placementPolicy) {
+        this.placementPolicy = placementPolicy;
+    }
+
+    public void setGarbageCollector(ChunkGarbageCollector garbageCollector) {
+        this.garbageCollector = garbageCollector;
+    }
+
+    // Runs a garbage collection pass now. Returns the number of chunks deleted.
+    public int collectGarbage() {
+        return garbageCollector.collect();
     }
 
-    private void saveMetadata() {
-        try (ObjectOutputStream oos = new ObjectOutputStream(Files.newOutputStream(Paths.get(METADATA_FILE)))) {
-            oos.writeObject(fileToChunksMap);
-            System.out.println("Metadata saved to " + METADATA_FILE);
+    private synchronized void refreshPlacementView() {
+        List<String> names = new ArrayList<>(storageServers.keySet());
+        Collections.sort(names);
+        List<StorageStats> view = new ArrayList<>(names.size());
+        for (String name : names) {
+            if (deadServers.contains(name)) {
+                continue;
+            }
+            StorageStats stats = serverStats.get(name);
+            view.add(stats != null ? stats : StorageStats.unknown(name));
+        }
+        placementView = Collections.unmodifiableList(view);
+    }
+
+    private void checkLiveness() {
+        try {
+            long now = System.nanoTime();
+            for (String server : storageServers.keySet()) {
+                Long last = lastHeartbeat.get(server);
+                if (last != null && now - last > TimeUnit.MILLISECONDS.toNanos(HEARTBEAT_TIMEOUT_MS) && deadServers.add(server)) {
+                    System.err.println("Storage server " + server + " missed heartbeats for " + HEARTBEAT_TIMEOUT_MS
+                            + " ms; declaring it dead.");
+                    refreshPlacementView();
+                    replicationManager.scheduleRepairs(server);
+                }
+            }
+            if (now - lastRepairScan > TimeUnit.MILLISECONDS.toNanos(REPAIR_RESCAN_MS)) {
+                lastRepairScan = now;
+                replicationManager.rescan(deadServers);
+                for (String server : deadServers) {
+                    // Once all its copies live elsewhere, its id in the location index can be reused.
+                    chunkLocations.releaseServer(server);
+                }
+            }
+        } catch (RuntimeException e) {
+            // Keep the monitor scheduled.
+            System.err.println("Error checking storage server liveness: " + e.getMessage());
+        }
+    }
+
+    private void expireUploadSessions() {
+        long now = System.nanoTime();
+        uploadSessions.entrySet().removeIf(entry -> {
+            boolean expired = now - entry.getValue().lastActivity > TimeUnit.MILLISECONDS.toNanos(UPLOAD_SESSION_TTL_MS);
+            if (expired) {
+                System.out.println("Upload session " + entry.getKey() + " for " + entry.getValue().fileName + " expired.");
+            }
+            return expired;
+        });
+    }
+
+    // Writes a full snapshot next to the journal. The temp file + rename means a crash
+    // mid-write leaves the previous snapshot intact.
+    private synchronized void saveMetadata() throws IOException {
+        Path snapshot = Paths.get(METADATA_FILE);
+        Path temp = Paths.get(METADATA_FILE + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(temp.toFile());
+             ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(fos))) {
+            oos.writeObject(fileManifests);
+            oos.writeObject(chunkLocations);
+            oos.writeObject(storageServers);
+            oos.flush();
+            fos.getFD().sync();
+        }
+        Files.move(temp, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        System.out.println("Metadata snapshot saved to " + METADATA_FILE);
+    }
+
+    private void openJournal() throws RemoteException {
+        journal = new MetadataJournal(Paths.get(METADATA_FILE).toAbsolutePath().getParent(), journalPrefix);
+        try {
+            long replayed = journal.open(new MetadataJournal.Replayer() {
+                @Override
+                public void manifestCommitted(FileManifest manifest) {
+                    fileManifests.put(manifest.getFileName(), manifest);
+                }
+
+                @Override
+                public void locationsChanged(String serverName, List<String> added, List<String> removed) {
+                    applyLocations(serverName, added, removed);
+                }
+
+                @Override
+                public void serverRegistered(String serverName, String url) {
+                    storageServers.put(serverName, url);
+                }
+
+                @Override
+                public void fileDeleted(String fileName) {
+                    fileManifests.remove(fileName);
+                }
+            });
+            if (replayed > 0) {
+                System.out.println("Replayed " + replayed + " metadata journal records.");
+                compact();
+            }
+        } catch (IOException e) {
+            System.err.println("Error opening metadata journal: " + e.getMessage());
+            throw new RemoteException("Failed to open metadata journal", e);
+        }
+    }
+
+    // Waits for a journaled mutation to reach disk and folds the journal into a
+    // snapshot once enough records have piled up.
+    private void persist(long seq) throws RemoteException {
+        try {
+            journal.awaitDurable(seq);
+        } catch (IOException e) {
+            throw new RemoteException("Failed to persist metadata", e);
+        }
+        if (journal.recordsInCurrentGeneration() >= SNAPSHOT_EVERY && compacting.compareAndSet(false, true)) {
+            compactor.submit(() -> {
+                try {
+                    compact();
+                } finally {
+                    compacting.set(false);
+                }
+            });
+        }
+    }
+
+    // Mutations are applied in memory before they are journaled, so everything in the
+    // sealed generations is already part of the snapshot written after the roll.
+    private void compact() {
+        try {
+            long sealed = journal.roll();
+            saveMetadata();
+            journal.deleteUpTo(sealed);
         } catch (IOException e) {
-            System.err.println("Error saving metadata: " + e.getMessage());
+            System.err.println("Error compacting metadata journal: " + e.getMessage());
         }
     }
 
@@ -39,14 +301,16 @@ public class MetadataServiceImpl extends UnicastRemoteObject implements Metadata
     private void loadMetadata() {
         if (Files.exists(Paths.get(METADATA_FILE))) {
             try (ObjectInputStream ois = new ObjectInputStream(Files.newInputStream(Paths.get(METADATA_FILE)))) {
-                fileToChunksMap = (Map<String, List<String>>) ois.readObject();
-                System.out.println("Metadata loaded from " + METADATA_FILE);
-               
-                chunkLocations.clear(); 
+                fileManifests = (ConcurrentSkipListMap<String, FileManifest>) ois.readObject();
+                chunkLocations = (ChunkLocationIndex) ois.readObject();
+                storageServers = (Map<String, String>) ois.readObject();
+                System.out.println("Metadata loaded from " + METADATA_FILE + ": " + fileManifests.size() + " files, "
+                        + chunkLocations.size() + " chunk locations, " + storageServers.size() + " storage servers");
             } catch (IOException | ClassNotFoundException e) {
                 System.err.println("Error loading metadata: " + e.getMessage());
-                
-                fileToChunksMap = new ConcurrentHashMap<>();
+                fileManifests = new ConcurrentSkipListMap<>();
+                chunkLocations = new ChunkLocationIndex();
+                storageServers = new ConcurrentHashMap<>();
             }
         } else {
             System.out.println("No existing metadata file found. Starting fresh.");
@@ -56,43 +320,247 @@ public class MetadataServiceImpl extends UnicastRemoteObject implements Metadata
     @Override
     public void registerStorageServer(String name, String host, int port) throws RemoteException {
         String url = host + ":" + port;
-        storageServers.put(name, url);
+        long seq;
+        synchronized (mutationLock) {
+            storageServers.put(name, url);
+            seq = journal(() -> journal.logServerRegistered(name, url));
+        }
+        persist(seq);
+        lastHeartbeat.put(name, System.nanoTime());
+        deadServers.remove(name);
+        replicationManager.livenessChanged(); // a new server is a new repair target
+        refreshPlacementView();
         System.out.println("Storage Server registered: " + name + " at " + url);
     }
 
+    @Override
+    public void heartbeat(StorageStats stats) throws RemoteException {
+        if (!storageServers.containsKey(stats.getServerName())) {
+            throw new UnknownStorageServerException("Unknown storage server " + stats.getServerName() + "; register it first.");
+        }
+        serverStats.put(stats.getServerName(), stats);
+        lastHeartbeat.put(stats.getServerName(), System.nanoTime());
+        if (deadServers.remove(stats.getServerName())) {
+            System.out.println("Storage server " + stats.getServerName() + " is back.");
+            replicationManager.livenessChanged();
+        }
+        refreshPlacementView();
+    }
+
     @Override
     public String getNextChunkServer() throws RemoteException {
-        if (storageServers.isEmpty()) {
+        return placementPolicy.place(1, 1, placementView).get(0).get(0);
+    }
+
+    @Override
+    public List<String> reserveChunkServers(int chunkCount) throws RemoteException {
+        List<String> placement = new ArrayList<>(chunkCount);
+        for (List<String> replicas : reserveChunkPlacement(chunkCount, 1)) {
+            placement.add(replicas.get(0));
+        }
+        return placement;
+    }
+
+    // Asking for more replicas than there are eligible servers gets one copy per server.
+    @Override
+    public List<List<String>> reserveChunkPlacement(int chunkCount, int replicationFactor) throws RemoteException {
+        if (chunkCount < 0) {
+            throw new RemoteException("Invalid chunk count: " + chunkCount);
+        }
+        List<StorageStats> view = placementView;
+        if (view.isEmpty()) {
             throw new RemoteException("No storage servers available.");
         }
-        List<String> serverNames = new ArrayList<>(storageServers.keySet());
-       
-        int currentSize = serverNames.size();
-        int index = serverCounter.getAndIncrement() % currentSize;
-        return serverNames.get(index);
+        return placementPolicy.place(chunkCount, replicationFactor > 0 ? replicationFactor : defaultReplicationFactor, view);
+    }
+
+    @Override
+    public void commitFile(FileManifest manifest) throws RemoteException {
+        checkOwnsFile(manifest.getFileName());
+        for (FileManifest.Chunk chunk : manifest.getChunks()) {
+            if (chunk.getServers().isEmpty()) {
+                throw new RemoteException("Chunk " + chunk.getName() + " of " + manifest.getFileName() + " has no storage server.");
+            }
+        }
+        // Deduplicated files mostly point at chunks that are already located; only journal what's new.
+        Map<String, Set<String>> chunksByServer = new HashMap<>();
+        for (FileManifest.Chunk chunk : manifest.getChunks()) {
+            for (String server : chunk.getServers()) {
+                if (!chunkLocations.contains(chunk.getName(), server)) {
+                    chunksByServer.computeIfAbsent(server, k -> new LinkedHashSet<>()).add(chunk.getName());
+                }
+            }
+        }
+        long seq;
+        synchronized (mutationLock) {
+            for (FileManifest.Chunk chunk : manifest.getChunks()) {
+                checkNotReclaimed(chunk);
+            }
+            // Locations go in first so the file is never listed before its chunks can be found.
+            for (Map.Entry<String, Set<String>> entry : chunksByServer.entrySet()) {
+                recordLocations(entry.getKey(), new ArrayList<>(entry.getValue()), Collections.emptyList());
+            }
+            seq = recordFile(manifest.withoutLocations(lastFileVersion.incrementAndGet()));
+        }
+        persist(seq);
+        System.out.println("File committed: " + manifest.getFileName() + " (" + manifest.getChunks().size() + " chunks, "
+                + manifest.getFileSize() + " bytes)");
+    }
+
+    // The chunks stay on the storage servers until the garbage collector finds them unreferenced.
+    @Override
+    public boolean deleteFile(String fileName) throws RemoteException {
+        long seq;
+        synchronized (mutationLock) {
+            if (fileManifests.remove(fileName) == null) {
+                return false;
+            }
+            seq = journal(() -> journal.logFileDeleted(fileName));
+        }
+        persist(seq);
+        System.out.println("File deleted: " + fileName);
+        return true;
+    }
+
+    @Override
+    public String beginUpload(String fileName, long fileSize) throws RemoteException {
+        checkOwnsFile(fileName);
+        String sessionId = UUID.randomUUID().toString();
+        uploadSessions.put(sessionId, new UploadSession(fileName, fileSize));
+        System.out.println("Upload session " + sessionId + " opened for " + fileName + " (" + fileSize + " bytes)");
+        return sessionId;
+    }
+
+    @Override
+    public Map<Integer, FileManifest.Chunk> resumeUpload(String sessionId) throws RemoteException {
+        UploadSession session = uploadSessions.get(sessionId);
+        if (session == null) {
+            return null;
+        }
+        session.lastActivity = System.nanoTime();
+        return new HashMap<>(session.chunks);
+    }
+
+    @Override
+    public void chunksUploaded(String sessionId, Map<Integer, FileManifest.Chunk> chunks) throws RemoteException {
+        UploadSession session = session(sessionId);
+        long seq = 0;
+        synchronized (mutationLock) {
+            for (FileManifest.Chunk chunk : chunks.values()) {
+                checkNotReclaimed(chunk);
+            }
+            for (FileManifest.Chunk chunk : chunks.values()) {
+                for (String server : chunk.getServers()) {
+                    if (!chunkLocations.contains(chunk.getName(), server)) {
+                        seq = recordLocations(server, Collections.singletonList(chunk.getName()), Collections.emptyList());
+                    }
+                }
+            }
+            // Under the lock, so the garbage collector sees these chunks as referenced from now on.
+            session.chunks.putAll(chunks);
+            for (FileManifest.Chunk chunk : chunks.values()) {
+                referencedSinceSnapshot.add(chunk.getName());
+            }
+        }
+        persist(seq);
+        session.lastActivity = System.nanoTime();
+    }
+
+    @Override
+    public void commitUpload(String sessionId, FileManifest manifest) throws RemoteException {
+        UploadSession session = session(sessionId);
+        if (!session.fileName.equals(manifest.getFileName()) || session.fileSize != manifest.getFileSize()) {
+            throw new RemoteException("Upload session " + sessionId + " is for " + session.fileName + ", not " + manifest.getFileName());
+        }
+        commitFile(manifest);
+        uploadSessions.remove(sessionId);
+    }
+
+    // Catches clients that route by a different shard count.
+    private void checkOwnsFile(String fileName) throws RemoteException {
+        int owner = MetadataShards.shardOf(fileName, shards);
+        if (owner != shard) {
+            throw new RemoteException(fileName + " belongs to metadata shard " + owner + ", not " + shard + " of " + shards);
+        }
+    }
+
+    private UploadSession session(String sessionId) throws RemoteException {
+        UploadSession session = uploadSessions.get(sessionId);
+        if (session == null) {
+            throw new RemoteException("Unknown or expired upload session " + sessionId);
+        }
+        return session;
+    }
+
+    private interface JournalWrite {
+        long append() throws IOException;
+    }
+
+    private long journal(JournalWrite write) throws RemoteException {
+        try {
+            return write.append();
+        } catch (IOException e) {
+            throw new RemoteException("Failed to journal metadata change", e);
+        }
+    }
+
+    // The record* methods apply a change and journal it. Callers hold mutationLock so the
+    // journal order matches the in-memory order.
+    private long recordFile(FileManifest manifest) throws RemoteException {
+        fileManifests.put(manifest.getFileName(), manifest);
+        referencedSinceSnapshot.addAll(manifest.getChunkNames());
+        return journal(() -> journal.logManifestCommitted(manifest));
+    }
+
+    // A manifest for a file known only by its chunk names.
+    private static FileManifest legacyManifest(String fileName, long fileSize, long version, List<String> chunkNames) {
+        FileManifest manifest = new FileManifest(fileName, fileSize, version);
+        for (String chunkName : chunkNames) {
+            manifest.addChunk(chunkName, Collections.emptyList());
+        }
+        return manifest;
+    }
+
+    private long recordLocations(String serverName, List<String> added, List<String> removed) throws RemoteException {
+        applyLocations(serverName, added, removed);
+        return journal(() -> journal.logLocationsChanged(serverName, added, removed));
+    }
+
+    private void applyLocations(String serverName, List<String> added, List<String> removed) {
+        for (String chunkName : added) {
+            chunkLocations.add(chunkName, serverName);
+        }
+        for (String chunkName : removed) {
+            chunkLocations.remove(chunkName, serverName);
+        }
     }
 
     @Override
     public void fileUploaded(String fileName, long fileSize, List<String> chunkNames) throws RemoteException {
-        fileToChunksMap.put(fileName, chunkNames);
+        checkOwnsFile(fileName);
+        long seq;
+        synchronized (mutationLock) {
+            seq = recordFile(legacyManifest(fileName, fileSize, lastFileVersion.incrementAndGet(), chunkNames));
+        }
+        persist(seq);
         System.out.println("File uploaded: " + fileName + " with chunks: " + chunkNames);
-        saveMetadata(); 
     }
 
     @Override
     public Map<String, List<String>> getFileChunks(String fileName) throws RemoteException {
-        if (!fileToChunksMap.containsKey(fileName)) {
+        FileManifest manifest = fileManifests.get(fileName);
+        if (manifest == null) {
             System.out.println("Attempted to retrieve non-existent file: " + fileName);
             return null;
         }
         
-        List<String> chunks = fileToChunksMap.get(fileName);
+        List<String> chunks = manifest.getChunkNames();
         Map<String, List<String>> chunksWithLocations = new HashMap<>();
 
         for (String chunk : chunks) {
-            List<String> locations = chunkLocations.get(chunk);
-            if (locations != null && !locations.isEmpty()) {
-                chunksWithLocations.put(chunk, new ArrayList<>(locations)); // Return a copy
+            List<String> locations = liveFirst(chunkLocations.locations(chunk));
+            if (!locations.isEmpty()) {
+                chunksWithLocations.put(chunk, locations);
             } else {
                 System.err.println("Warning: Chunk " + chunk + " has no known locations on any active server.");
             }
@@ -100,9 +568,309 @@ public class MetadataServiceImpl extends UnicastRemoteObject implements Metadata
         return chunksWithLocations;
     }
 
+    // Unlike getFileChunks, keeps the file's chunk order, chunk lengths and repeated chunks,
+    // which content-addressed files can have.
+    @Override
+    public FileManifest getFileManifest(String fileName) throws RemoteException {
+        FileManifest stored = fileManifests.get(fileName);
+        if (stored == null) {
+            System.out.println("Attempted to retrieve non-existent file: " + fileName);
+            return null;
+        }
+        FileManifest manifest = new FileManifest(fileName, stored.getFileSize(), stored.getVersion());
+        for (FileManifest.Chunk chunk : stored.getChunks()) {
+            manifest.addChunk(chunk.getName(), chunk.getLength(), chunk.getChecksum(), chunk.getCodec(),
+                    liveFirst(chunkLocations.locations(chunk.getName())));
+        }
+        return manifest;
+    }
+
+    // Only chunks with a live replica count as present; anything else must be uploaded again.
+    // Copies being garbage collected don't count either. Every chunk asked about counts as
+    // found, and is marked so before the check; beginReclaim marks before it checks, so one
+    // of the two always backs off.
+    @Override
+    public Map<String, List<String>> findChunks(List<String> chunkNames) throws RemoteException {
+        Map<String, List<String>> found = new HashMap<>();
+        for (String chunkName : chunkNames) {
+            recentlyFound.put(chunkName, System.nanoTime());
+            List<String> live = new ArrayList<>();
+            for (String server : chunkLocations.locations(chunkName)) {
+                if (isLive(server) && !reclaiming.containsKey(reclaimKey(chunkName, server))) {
+                    live.add(server);
+                }
+            }
+            if (!live.isEmpty()) {
+                found.put(chunkName, live);
+            }
+        }
+        return found;
+    }
+
+    // Drops dead servers from a location list, unless they are all there is: a server that
+    // stopped heartbeating may still be serving reads.
+    private List<String> liveFirst(List<String> locations) {
+        List<String> live = new ArrayList<>(locations.size());
+        for (String server : locations) {
+            if (!deadServers.contains(server)) {
+                live.add(server);
+            }
+        }
+        return live.isEmpty() ? locations : live;
+    }
+
+    // Hooks for ReplicationManager.
+
+    List<String> chunksOn(String serverName) {
+        return chunkLocations.chunksOn(serverName);
+    }
+
+    List<String> locations(String chunkName) {
+        return chunkLocations.locations(chunkName);
+    }
+
+    boolean isLive(String serverName) {
+        return storageServers.containsKey(serverName) && !deadServers.contains(serverName);
+    }
+
+    String registryOf(String serverName) throws RemoteException {
+        String url = storageServers.get(serverName);
+        if (url == null) {
+            throw new RemoteException("Unknown storage server " + serverName);
+        }
+        return url;
+    }
+
+    // A live server without a copy of the chunk, chosen by the placement policy; null if none.
+    String chooseRepairTarget(Collection<String> exclude) throws RemoteException {
+        List<StorageStats> candidates = new ArrayList<>();
+        for (StorageStats stats : placementView) {
+            if (!exclude.contains(stats.getServerName())) {
+                candidates.add(stats);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return null;
+        }
+        return placementPolicy.place(1, 1, candidates).get(0).get(0);
+    }
+
+    // Servers ordered by requests in flight, so repairs read from the least busy replica.
+    List<String> leastLoaded(List<String> servers) {
+        List<String> ordered = new ArrayList<>(servers);
+        ordered.sort(Comparator.comparingInt(server -> {
+            StorageStats stats = serverStats.get(server);
+            return stats != null ? stats.getInFlightRequests() : 0;
+        }));
+        return ordered;
+    }
+
+    // Hooks for ChunkGarbageCollector.
+
+    List<String> liveServers() {
+        List<String> live = new ArrayList<>();
+        for (String server : storageServers.keySet()) {
+            if (isLive(server)) {
+                live.add(server);
+            }
+        }
+        return live;
+    }
+
+    // Only this shard's chunks are considered for collection; the other shards own the rest.
+    int shard() {
+        return shard;
+    }
+
+    int shardCount() {
+        return shards;
+    }
+
+    // Every chunk a manifest, an open upload session or a recent findChunks refers to. Taken
+    // once per collector pass, outside mutationLock; what gets referenced while it is being
+    // built, or later in the pass, is tracked in referencedSinceSnapshot instead.
+    Set<String> referencedChunks() {
+        long expired = System.nanoTime() - garbageCollector.getGraceNanos();
+        recentlyFound.values().removeIf(found -> found - expired < 0);
+        reclaiming.values().removeIf(since -> since - expired < 0);
+        reclaimed.values().removeIf(since -> since - expired < 0);
+        synchronized (mutationLock) {
+            referencedSinceSnapshot = new HashSet<>();
+        }
+        Set<String> referenced = new HashSet<>(recentlyFound.keySet());
+        for (FileManifest manifest : fileManifests.values()) {
+            referenced.addAll(manifest.getChunkNames());
+        }
+        for (UploadSession session : uploadSessions.values()) {
+            for (FileManifest.Chunk chunk : session.chunks.values()) {
+                referenced.add(chunk.getName());
+            }
+        }
+        return referenced;
+    }
+
+    // Marks the chunks that are still unreferenced as being deleted from server and returns
+    // them. candidates must be unreferenced in the pass's referencedChunks(); only what was
+    // referenced since is rechecked. From here until chunksReclaimed, findChunks leaves those
+    // copies out and an upload or commit naming one is refused, since the copy may be gone by
+    // the time the file is read.
+    List<String> beginReclaim(String server, List<String> candidates) {
+        List<String> batch = new ArrayList<>();
+        synchronized (mutationLock) {
+            long now = System.nanoTime();
+            for (String chunkName : candidates) {
+                if (referencedSinceSnapshot.contains(chunkName) || recentlyFound.containsKey(chunkName)) {
+                    continue;
+                }
+                String key = reclaimKey(chunkName, server);
+                reclaiming.put(key, now);
+                // Handed out by a findChunks that didn't see the mark yet.
+                if (recentlyFound.containsKey(chunkName)) {
+                    reclaiming.remove(key);
+                    continue;
+                }
+                batch.add(chunkName);
+            }
+        }
+        return batch;
+    }
+
+    // Called once the garbage collector has deleted the batch, or given up on it, from server.
+    void chunksReclaimed(String server, List<String> chunkNames) throws RemoteException {
+        List<String> located = new ArrayList<>();
+        for (String chunkName : chunkNames) {
+            if (chunkLocations.contains(chunkName, server)) {
+                located.add(chunkName);
+            }
+        }
+        long seq = 0;
+        synchronized (mutationLock) {
+            if (!located.isEmpty()) {
+                seq = recordLocations(server, Collections.emptyList(), located);
+            }
+            long now = System.nanoTime();
+            for (String chunkName : chunkNames) {
+                String key = reclaimKey(chunkName, server);
+                if (reclaiming.remove(key) != null) {
+                    reclaimed.put(key, now);
+                }
+            }
+        }
+        persist(seq);
+    }
+
+    // Refuses a chunk copy the garbage collector is deleting or has deleted. A copy being
+    // deleted stays refused until the deletion is over, since sending the chunk again before
+    // then could still lose it. Once it is over, the first refusal drops the mark, so the
+    // client's next attempt, which sends the chunk again, goes through.
+    private void checkNotReclaimed(FileManifest.Chunk chunk) throws RemoteException {
+        for (String server : chunk.getServers()) {
+            String key = reclaimKey(chunk.getName(), server);
+            if (reclaiming.containsKey(key)) {
+                throw new ChunkReclaimedException("Chunk " + chunk.getName() + " on " + server
+                        + " is being deleted by garbage collection; upload it again shortly.");
+            }
+            if (reclaimed.remove(key) != null) {
+                throw new ChunkReclaimedException("Chunk " + chunk.getName() + " on " + server
+                        + " was deleted by garbage collection; upload it again.");
+            }
+        }
+    }
+
+    private static String reclaimKey(String chunkName, String server) {
+        return server + "\n" + chunkName;
+    }
+
+    // Records a completed repair that added a copy without replacing one.
+    void replicaAdded(String chunkName, String to) throws RemoteException {
+        long seq;
+        synchronized (mutationLock) {
+            seq = recordLocations(to, Collections.singletonList(chunkName), Collections.emptyList());
+        }
+        persist(seq);
+    }
+
+    // Records a completed repair: the new copy replaces the one on the dead server.
+    void replicaMoved(String chunkName, String from, String to) throws RemoteException {
+        long seq;
+        synchronized (mutationLock) {
+            recordLocations(to, Collections.singletonList(chunkName), Collections.emptyList());
+            seq = recordLocations(from, Collections.emptyList(), Collections.singletonList(chunkName));
+        }
+        persist(seq);
+    }
+
     @Override
     public List<String> listAvailableFiles() throws RemoteException {
-        return new ArrayList<>(fileToChunksMap.keySet());
+        return new ArrayList<>(fileManifests.keySet());
+    }
+
+    // Walks the sorted index from the cursor (exclusive) or from the prefix, so a page costs
+    // the same however large the namespace is.
+    @Override
+    public FileListing listFiles(String prefix, String cursor, int limit) throws RemoteException {
+        return listFiles(prefix, null, cursor, limit);
+    }
+
+    // Walks the index from the cursor, or from the prefix, one key at a time. A common prefix
+    // is passed over in one step by seeking to the first name after everything that starts
+    // with it. A cursor inside a common prefix can only be the prefix itself, so it resumes
+    // past the lot.
+    @Override
+    public FileListing listFiles(String prefix, String delimiter, String cursor, int limit) throws RemoteException {
+        if (limit < 1) {
+            throw new RemoteException("Invalid listing page size: " + limit);
+        }
+        String from = prefix != null ? prefix : "";
+        boolean grouping = delimiter != null && !delimiter.isEmpty();
+        limit = Math.min(limit, MAX_LISTING_PAGE);
+        Map.Entry<String, FileManifest> entry;
+        if (cursor != null && cursor.compareTo(from) >= 0) {
+            String group = grouping && cursor.startsWith(from) ? commonPrefix(cursor, from, delimiter) : null;
+            entry = group != null ? after(group) : fileManifests.higherEntry(cursor);
+        } else {
+            entry = fileManifests.ceilingEntry(from);
+        }
+        List<FileListing.Entry> entries = new ArrayList<>();
+        List<String> commonPrefixes = new ArrayList<>();
+        String last = null;
+        while (entry != null && entry.getKey().startsWith(from)) {
+            if (entries.size() + commonPrefixes.size() == limit) {
+                return new FileListing(entries, commonPrefixes, last);
+            }
+            String name = entry.getKey();
+            String group = grouping ? commonPrefix(name, from, delimiter) : null;
+            if (group != null) {
+                commonPrefixes.add(group);
+                last = group;
+                entry = after(group);
+            } else {
+                FileManifest manifest = entry.getValue();
+                entries.add(new FileListing.Entry(name, manifest.getFileSize(), manifest.getChunks().size(), manifest.getVersion()));
+                last = name;
+                entry = fileManifests.higherEntry(name);
+            }
+        }
+        return new FileListing(entries, commonPrefixes, null);
+    }
+
+    // name up to and including the first delimiter after prefix, or null if there is none.
+    // The first file whose name doesn't start with prefix and sorts after it, or null. Its
+    // name is at least the prefix with its last char bumped, trailing U+FFFF chars dropped.
+    private Map.Entry<String, FileManifest> after(String prefix) {
+        int end = prefix.length();
+        while (end > 0 && prefix.charAt(end - 1) == Character.MAX_VALUE) {
+            end--;
+        }
+        if (end == 0) {
+            return null;
+        }
+        return fileManifests.ceilingEntry(prefix.substring(0, end - 1) + (char) (prefix.charAt(end - 1) + 1));
+    }
+
+    private static String commonPrefix(String name, String prefix, String delimiter) {
+        int at = name.indexOf(delimiter, prefix.length());
+        return at >= 0 ? name.substring(0, at + delimiter.length()) : null;
     }
 
 //    @Override
@@ -117,25 +885,97 @@ public class MetadataServiceImpl extends UnicastRemoteObject implements Metadata
 
     @Override
     public String getStorageServerForChunk(String chunkName) throws RemoteException {
-        List<String> servers = chunkLocations.get(chunkName);
-        if (servers == null || servers.isEmpty()) {
+        List<String> servers = liveFirst(chunkLocations.locations(chunkName));
+        if (servers.isEmpty()) {
             return null;
         }
         return servers.get(0);
     }
 
+    // The damaged copy is forgotten right away, so clients stop being sent to it, and a new
+    // copy is made from one of the remaining replicas.
+    @Override
+    public void chunkCorrupt(String chunkName, String storageServerName) throws RemoteException {
+        if (!chunkLocations.contains(chunkName, storageServerName)) {
+            return;
+        }
+        long seq;
+        synchronized (mutationLock) {
+            seq = recordLocations(storageServerName, Collections.emptyList(), Collections.singletonList(chunkName));
+        }
+        persist(seq);
+        System.err.println("Chunk " + chunkName + " on " + storageServerName + " is corrupt; re-replicating it.");
+        replicationManager.scheduleRepair(chunkName, storageServerName);
+    }
+
     @Override
     public void chunkStored(String chunkName, String storageServerName) throws RemoteException {
-        chunkLocations.computeIfAbsent(chunkName, k -> new Vector<>()).add(storageServerName);
+        long seq;
+        synchronized (mutationLock) {
+            seq = recordLocations(storageServerName, Collections.singletonList(chunkName), Collections.emptyList());
+        }
+        persist(seq);
         System.out.println("Chunk " + chunkName + " acknowledged on " + storageServerName);
     }
 
     @Override
     public void registerChunk(String chunkName, String storageServerName) throws RemoteException {
-        List<String> locations = chunkLocations.computeIfAbsent(chunkName, k -> new Vector<>()); 
-        if (!locations.contains(storageServerName)) {
-            locations.add(storageServerName);
-        }
+        chunkStored(chunkName, storageServerName);
         System.out.println("Storage Server " + storageServerName + " registered chunk: " + chunkName);
     }
+
+    @Override
+    public List<Integer> compareChunkInventory(String storageServerName, long[] bucketDigests) throws RemoteException {
+        if (bucketDigests.length != ChunkInventory.BUCKETS) {
+            throw new RemoteException("Expected " + ChunkInventory.BUCKETS + " bucket digests, got " + bucketDigests.length);
+        }
+        long[] known = ChunkInventory.digest(chunkLocations.chunksOn(storageServerName));
+        List<Integer> staleBuckets = new ArrayList<>();
+        for (int bucket = 0; bucket < ChunkInventory.BUCKETS; bucket++) {
+            if (known[bucket] != bucketDigests[bucket]) {
+                staleBuckets.add(bucket);
+            }
+        }
+        System.out.println("Block report from " + storageServerName + ": " + staleBuckets.size() + " of "
+                + ChunkInventory.BUCKETS + " buckets differ");
+        return staleBuckets;
+    }
+
+    @Override
+    public void reportChunks(String storageServerName, List<Integer> buckets, byte[] chunkBatch, boolean lastBatch) throws RemoteException {
+        List<String> chunkNames;
+        try {
+            chunkNames = ChunkInventory.decodeBatch(chunkBatch);
+        } catch (IOException e) {
+            throw new RemoteException("Malformed chunk report from " + storageServerName, e);
+        }
+        Set<String> reported = pendingReports.computeIfAbsent(storageServerName, k -> ConcurrentHashMap.newKeySet());
+        List<String> added = new ArrayList<>();
+        for (String chunkName : chunkNames) {
+            reported.add(chunkName);
+            if (!chunkLocations.contains(chunkName, storageServerName)) {
+                added.add(chunkName);
+            }
+        }
+        // Removals can only be decided once the whole report for these buckets is in.
+        List<String> removed = new ArrayList<>();
+        if (lastBatch) {
+            pendingReports.remove(storageServerName);
+            for (String chunkName : ChunkInventory.inBuckets(chunkLocations.chunksOn(storageServerName), buckets)) {
+                if (!reported.contains(chunkName)) {
+                    removed.add(chunkName);
+                }
+            }
+        }
+        if (added.isEmpty() && removed.isEmpty()) {
+            return;
+        }
+        long seq;
+        synchronized (mutationLock) {
+            seq = recordLocations(storageServerName, added, removed);
+        }
+        persist(seq);
+        System.out.println("Block report from " + storageServerName + ": " + chunkNames.size() + " chunks received, "
+                + added.size() + " added, " + removed.size() + " removed");
+    }
 }
\ No newline at end of file
@@ -0,0 +1,89 @@
+package myrmi;
+
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.Registry;
+import java.util.ArrayList;
+import java.util.List;
+
+// How the namespace is split across metadata servers. Shard i of n binds as
+// "MetadataService-i-of-n" and owns the files whose names hash to i, together with the chunks
+// those files store. Those chunks are named "m<i>~<name>", so a storage server can tell which
+// shard to report a chunk to, and a shard's garbage collector never touches another shard's
+// chunks. Deduplication therefore works within a shard. With a single metadata server nothing
+// changes: it binds as "MetadataService" and chunk names carry no prefix.
+//
+// The shard count is fixed for the life of a deployment; files are not moved between shards.
+public final class MetadataShards {
+    public static final String BINDING_NAME = "MetadataService";
+    private static final char SHARD_SEPARATOR = '~';
+
+    private MetadataShards() {
+    }
+
+    public static String bindingName(int shard, int shards) {
+        return shards == 1 ? BINDING_NAME : BINDING_NAME + "-" + shard + "-of-" + shards;
+    }
+
+    public static int shardOf(String fileName, int shards) {
+        return (int) Long.remainderUnsigned(ChunkInventory.hash(fileName), shards);
+    }
+
+    // Prefix for the names of chunks stored by files on the shard.
+    public static String chunkPrefix(int shard, int shards) {
+        return shards == 1 ? "" : "m" + shard + SHARD_SEPARATOR;
+    }
+
+    // The shard a chunk belongs to; chunks without a shard prefix belong to shard 0.
+    public static int shardOfChunk(String chunkName, int shards) {
+        int separator = prefixLength(chunkName) - 1;
+        if (shards == 1 || separator < 0) {
+            return 0;
+        }
+        int shard = Integer.parseInt(chunkName.substring(1, separator));
+        return shard < shards ? shard : 0;
+    }
+
+    // The chunk name without its shard prefix.
+    public static String unscoped(String chunkName) {
+        return chunkName.substring(prefixLength(chunkName));
+    }
+
+    private static int prefixLength(String chunkName) {
+        int separator = chunkName.indexOf(SHARD_SEPARATOR);
+        if (separator < 2 || separator > 10 || chunkName.charAt(0) != 'm') {
+            return 0;
+        }
+        for (int i = 1; i < separator; i++) {
+            if (chunkName.charAt(i) < '0' || chunkName.charAt(i) > '9') {
+                return 0;
+            }
+        }
+        return separator + 1;
+    }
+
+    // Every metadata server bound in the registry, indexed by shard. Fails unless all shards
+    // of the deployment are up.
+    public static List<MetadataService> lookup(Registry registry) throws RemoteException, NotBoundException {
+        int shards = 0;
+        for (String name : registry.list()) {
+            if (name.startsWith(BINDING_NAME + "-")) {
+                shards = Integer.parseInt(name.substring(name.lastIndexOf('-') + 1));
+                break;
+            }
+        }
+        List<MetadataService> services = new ArrayList<>();
+        if (shards == 0) {
+            services.add((MetadataService) registry.lookup(BINDING_NAME));
+            return services;
+        }
+        for (int shard = 0; shard < shards; shard++) {
+            try {
+                services.add((MetadataService) registry.lookup(bindingName(shard, shards)));
+            } catch (NotBoundException e) {
+                throw new NotBoundException("Metadata shard " + shard + " of " + shards + " is not running");
+            }
+        }
+        return services;
+    }
+}
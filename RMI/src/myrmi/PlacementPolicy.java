@@ -0,0 +1,11 @@
+package myrmi;
+
+import java.rmi.RemoteException;
+import java.util.List;
+
+// Decides which storage servers receive new chunks. Implementations get the current view of
+// every registered server and return, per chunk, up to replicas distinct server names.
+// Returning fewer than replicas (but at least one) is allowed when not enough servers qualify.
+public interface PlacementPolicy {
+    List<List<String>> place(int chunkCount, int replicas, List<StorageStats> servers) throws RemoteException;
+}
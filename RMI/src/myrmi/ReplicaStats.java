@@ -0,0 +1,122 @@
+package myrmi;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// The client's running view of how each storage server serves chunk reads: an EWMA of
+// latency and of its deviation (the same estimator TCP uses for retransmit timeouts),
+// requests in flight from this client, and consecutive failures. Replicas are ranked by
+// expected latency scaled by queue depth; a server that keeps failing is only tried after
+// the healthy ones until it has been quiet for a while.
+public class ReplicaStats {
+    private static final double ALPHA = 0.125;
+    private static final double BETA = 0.25;
+    private static final int FAILURES_BEFORE_BACKOFF = 3;
+    private static final long BACKOFF_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final long MIN_HEDGE_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+    private static final long UNKNOWN_HEDGE_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+    private static final class ServerStats {
+        final AtomicInteger inFlight = new AtomicInteger();
+        double latencyNanos;
+        double deviationNanos;
+        long samples;
+        int consecutiveFailures;
+        long lastFailureNanos;
+    }
+
+    private final Map<String, ServerStats> servers = new ConcurrentHashMap<>();
+
+    public void begin(String server) {
+        stats(server).inFlight.incrementAndGet();
+    }
+
+    public void end(String server) {
+        stats(server).inFlight.decrementAndGet();
+    }
+
+    public void recordSuccess(String server, long elapsedNanos) {
+        ServerStats s = stats(server);
+        synchronized (s) {
+            if (s.samples == 0) {
+                s.latencyNanos = elapsedNanos;
+                s.deviationNanos = elapsedNanos / 2.0;
+            } else {
+                s.deviationNanos += BETA * (Math.abs(elapsedNanos - s.latencyNanos) - s.deviationNanos);
+                s.latencyNanos += ALPHA * (elapsedNanos - s.latencyNanos);
+            }
+            s.samples++;
+            s.consecutiveFailures = 0;
+        }
+    }
+
+    public void recordFailure(String server) {
+        ServerStats s = stats(server);
+        synchronized (s) {
+            s.consecutiveFailures++;
+            s.lastFailureNanos = System.nanoTime();
+        }
+    }
+
+    // Healthy replicas fastest first, then any in backoff as a last resort.
+    public List<String> rank(List<String> replicas) {
+        List<String> healthy = new ArrayList<>(replicas.size());
+        List<String> backedOff = new ArrayList<>();
+        for (String server : replicas) {
+            (isHealthy(server) ? healthy : backedOff).add(server);
+        }
+        Comparator<String> byScore = Comparator.comparingDouble(this::score);
+        healthy.sort(byScore);
+        backedOff.sort(byScore);
+        healthy.addAll(backedOff);
+        return healthy;
+    }
+
+    // How long to wait on a server before a hedged request is worth sending elsewhere.
+    public long hedgeDelayNanos(String server) {
+        ServerStats s = stats(server);
+        synchronized (s) {
+            if (s.samples == 0) {
+                return UNKNOWN_HEDGE_DELAY_NANOS;
+            }
+            return Math.max(MIN_HEDGE_DELAY_NANOS, (long) (s.latencyNanos + 4 * s.deviationNanos));
+        }
+    }
+
+    private boolean isHealthy(String server) {
+        ServerStats s = stats(server);
+        synchronized (s) {
+            return s.consecutiveFailures < FAILURES_BEFORE_BACKOFF || System.nanoTime() - s.lastFailureNanos > BACKOFF_NANOS;
+        }
+    }
+
+    // Servers without samples score 0 so every replica gets measured early on.
+    private double score(String server) {
+        ServerStats s = stats(server);
+        synchronized (s) {
+            return s.latencyNanos * (1 + s.inFlight.get());
+        }
+    }
+
+    private ServerStats stats(String server) {
+        return servers.computeIfAbsent(server, k -> new ServerStats());
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, ServerStats> entry : servers.entrySet()) {
+            ServerStats s = entry.getValue();
+            synchronized (s) {
+                sb.append(entry.getKey()).append(String.format(": %.1f ms (+/- %.1f), %d in flight, %d failures%n",
+                        s.latencyNanos / 1e6, s.deviationNanos / 1e6, s.inFlight.get(), s.consecutiveFailures));
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,200 @@
+package myrmi;
+
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Restores chunks that lost a replica to a dead storage server or to corruption. Each
+// repair asks a surviving replica to copy the chunk straight to a new server, then moves
+// the location from the dead server to the new one (or just adds it, for a corrupt copy
+// that was already dropped). At most MAX_CONCURRENT_REPAIRS copies run at a
+// time and each is paced to its share of REPAIR_BANDWIDTH, so repairs trickle along
+// beside client traffic instead of saturating the surviving servers.
+public class ReplicationManager {
+    public static final int MAX_CONCURRENT_REPAIRS = 4;
+    public static final long REPAIR_BANDWIDTH = 32L * 1024 * 1024; // bytes per second, all repairs together
+
+    private final MetadataServiceImpl metadata;
+    // Chunks queued or being repaired, so repeated scans don't pile up duplicate work.
+    private final Set<String> scheduled = ConcurrentHashMap.newKeySet();
+    // Repairs that can't make progress until a server comes back or joins: chunks with no
+    // live replica, and chunks with no spare server to copy to. Skipped until then.
+    private final Set<String> unavailable = ConcurrentHashMap.newKeySet();
+    private final Set<String> noTarget = ConcurrentHashMap.newKeySet();
+    // Repairs whose copy failed; retried on the next rescan.
+    private final Set<String> failed = ConcurrentHashMap.newKeySet();
+    private volatile boolean livenessChanged;
+    private final Map<String, StorageService> storageStubs = new ConcurrentHashMap<>();
+    private final ExecutorService repairers = Executors.newFixedThreadPool(MAX_CONCURRENT_REPAIRS, r -> {
+        Thread t = new Thread(r, "chunk-repair");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public ReplicationManager(MetadataServiceImpl metadata) {
+        this.metadata = metadata;
+    }
+
+    // Queues every chunk with a replica on the dead server. Safe to call again: chunks
+    // already queued or stalled are skipped and repaired chunks no longer list the server.
+    public void scheduleRepairs(String deadServer) {
+        int queued = 0;
+        for (String chunkName : metadata.chunksOn(deadServer)) {
+            if (!unavailable.contains(chunkName) && !noTarget.contains(chunkName) && scheduled.add(chunkName)) {
+                repairers.submit(() -> repair(chunkName));
+                queued++;
+            }
+        }
+        if (queued > 0) {
+            System.out.println("Scheduled re-replication of " + queued + " chunks from " + deadServer);
+        }
+    }
+
+    // Queues a chunk whose copy on lostServer was discarded. The replacement goes to another
+    // server, so a disk that damaged the chunk once doesn't get it back.
+    public void scheduleRepair(String chunkName, String lostServer) {
+        if (scheduled.add(chunkName)) {
+            repairers.submit(() -> replaceLost(chunkName, lostServer));
+        }
+    }
+
+    public int pendingRepairs() {
+        return scheduled.size();
+    }
+
+    // A server came back or joined, so stalled repairs may now go through.
+    public void livenessChanged() {
+        livenessChanged = true;
+    }
+
+    // Periodic pass. The dead servers' chunks are only listed again after a liveness change;
+    // otherwise just the failed copies are retried. Stalled repairs are logged as one count.
+    public void rescan(Collection<String> deadServers) {
+        if (!unavailable.isEmpty() || !noTarget.isEmpty()) {
+            System.err.println("Re-replication stalled: " + unavailable.size() + " chunks have no live replica, "
+                    + noTarget.size() + " have no spare storage server to copy to.");
+        }
+        if (livenessChanged) {
+            livenessChanged = false;
+            unavailable.clear();
+            noTarget.clear();
+            failed.clear();
+            for (String deadServer : deadServers) {
+                scheduleRepairs(deadServer);
+            }
+        } else {
+            for (String chunkName : new ArrayList<>(failed)) {
+                failed.remove(chunkName);
+                if (scheduled.add(chunkName)) {
+                    repairers.submit(() -> repair(chunkName));
+                }
+            }
+        }
+    }
+
+    private void repair(String chunkName) {
+        try {
+            List<String> live = new ArrayList<>();
+            List<String> dead = new ArrayList<>();
+            List<String> holders = metadata.locations(chunkName);
+            for (String server : holders) {
+                (metadata.isLive(server) ? live : dead).add(server);
+            }
+            if (live.isEmpty()) {
+                if (!dead.isEmpty()) {
+                    unavailable.add(chunkName); // stays unavailable until one of the dead servers returns
+                }
+                return;
+            }
+            List<String> exclude = new ArrayList<>(holders);
+            for (String deadServer : dead) {
+                String target = metadata.chooseRepairTarget(exclude);
+                if (target == null) {
+                    noTarget.add(chunkName);
+                    return;
+                }
+                if (!copy(chunkName, metadata.leastLoaded(live), target)) {
+                    failed.add(chunkName);
+                    return;
+                }
+                metadata.replicaMoved(chunkName, deadServer, target);
+                exclude.add(target);
+                live.add(target);
+            }
+        } catch (RemoteException e) {
+            failed.add(chunkName);
+            System.err.println("Error re-replicating " + chunkName + ": " + e.getMessage());
+        } finally {
+            scheduled.remove(chunkName);
+        }
+    }
+
+    private void replaceLost(String chunkName, String lostServer) {
+        try {
+            List<String> live = new ArrayList<>();
+            List<String> holders = metadata.locations(chunkName);
+            for (String server : holders) {
+                if (metadata.isLive(server)) {
+                    live.add(server);
+                }
+            }
+            if (live.isEmpty()) {
+                System.err.println("Chunk " + chunkName + " has no other live replica; it can't be restored.");
+                return;
+            }
+            List<String> exclude = new ArrayList<>(holders);
+            exclude.add(lostServer);
+            String target = metadata.chooseRepairTarget(exclude);
+            if (target == null) {
+                System.err.println("No spare storage server to re-replicate " + chunkName + " onto.");
+                return;
+            }
+            if (copy(chunkName, metadata.leastLoaded(live), target)) {
+                metadata.replicaAdded(chunkName, target);
+            }
+        } catch (RemoteException e) {
+            System.err.println("Error re-replicating " + chunkName + ": " + e.getMessage());
+        } finally {
+            scheduled.remove(chunkName);
+        }
+    }
+
+    // Tries each source in turn until one manages the copy.
+    private boolean copy(String chunkName, List<String> sources, String target) {
+        long bytesPerSecond = REPAIR_BANDWIDTH / MAX_CONCURRENT_REPAIRS;
+        for (String source : sources) {
+            try {
+                storage(source).replicateChunk(chunkName, target, metadata.registryOf(target), bytesPerSecond);
+                System.out.println("Re-replicated " + chunkName + " from " + source + " to " + target);
+                return true;
+            } catch (Exception e) {
+                storageStubs.remove(source);
+                System.err.println("Copying " + chunkName + " from " + source + " to " + target + " failed: " + e.getMessage());
+            }
+        }
+        return false;
+    }
+
+    private StorageService storage(String server) throws Exception {
+        StorageService stub = storageStubs.get(server);
+        if (stub == null) {
+            String registry = metadata.registryOf(server);
+            int colon = registry.lastIndexOf(':');
+            stub = (StorageService) LocateRegistry.getRegistry(registry.substring(0, colon),
+                    Integer.parseInt(registry.substring(colon + 1))).lookup(server);
+            storageStubs.put(server, stub);
+        }
+        return stub;
+    }
+
+    public void shutdown() {
+        repairers.shutdownNow();
+    }
+}
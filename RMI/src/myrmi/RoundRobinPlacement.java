@@ -0,0 +1,30 @@
+package myrmi;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// The original placement: consecutive chunks start on consecutive servers and each chunk's
+// replicas are the next servers round the ring. Ignores load and free space.
+public class RoundRobinPlacement implements PlacementPolicy {
+    private final AtomicInteger serverCounter = new AtomicInteger(0);
+
+    @Override
+    public List<List<String>> place(int chunkCount, int replicas, List<StorageStats> servers) throws RemoteException {
+        if (servers.isEmpty()) {
+            throw new RemoteException("No storage servers available.");
+        }
+        int copies = Math.min(replicas, servers.size());
+        int start = serverCounter.getAndAdd(chunkCount);
+        List<List<String>> placement = new ArrayList<>(chunkCount);
+        for (int i = 0; i < chunkCount; i++) {
+            List<String> chunkServers = new ArrayList<>(copies);
+            for (int r = 0; r < copies; r++) {
+                chunkServers.add(servers.get(Math.floorMod(start + i + r, servers.size())).getServerName());
+            }
+            placement.add(chunkServers);
+        }
+        return placement;
+    }
+}
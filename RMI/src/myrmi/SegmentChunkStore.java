@@ -0,0 +1,778 @@
+package myrmi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Log-structured chunk storage: chunks are appended to large segment files under segments/
+// and found through an in-memory index of chunk id -> (segment, offset), so a server holding
+// millions of chunks keeps a handful of files open instead of opening one per read, and
+// starts without listing a huge directory. Reads are positional reads on the segment's
+// shared channel.
+//
+// Record: magic (4) | type (1) | sequence (8) | length (8) | CRC32C (8) | id length (2) | id (UTF-8)
+//         | header CRC32C (4) | data (length bytes; none for a deletion)
+//
+// Every put or delete gets the next sequence number, and the record with the highest one
+// wins, so records can be replayed in any order. When a segment reaches segmentBytes it is
+// sealed: fsynced, and its records are listed in segment-N.idx, which is what startup reads
+// instead of the segment itself. Only the segment still being appended to is scanned, and
+// its data verified, on startup; a record torn by a crash is cut off there.
+//
+// Overwritten and deleted chunks leave dead records behind. A background compactor copies
+// the live records out of sealed segments that are mostly dead, keeping their sequence
+// numbers, and then deletes the segment. Deletion records are carried along for as long as
+// an older record of the chunk remains anywhere, or the chunk would come back on restart.
+//
+// An upload is staged in a temp file under .incoming/ and copied into the active segment
+// when its batch is published, so chunks never sit on the heap. Tombstones for a batch of
+// deletions are appended together and fsynced once.
+//
+// Chunk files left in the storage directory by FileChunkStore are moved into segments on
+// startup.
+public class SegmentChunkStore extends ChunkStore {
+    static final String DIRECTORY = "segments";
+    public static final long DEFAULT_SEGMENT_BYTES = 256L * 1024 * 1024;
+    private static final long COMPACTION_INTERVAL_MS = TimeUnit.SECONDS.toMillis(30);
+    private static final double COMPACT_BELOW_LIVE_RATIO = 0.5;
+    private static final int RECORD_MAGIC = 0x53434b31;
+    private static final int INDEX_MAGIC = 0x53494431;
+    private static final int FIXED_HEADER_BYTES = 4 + 1 + 8 + 8 + 8 + 2;
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d+)\\.log");
+
+    private static final class Segment {
+        final long number;
+        final Path path;
+        final FileChannel channel;
+        long size;
+        long liveBytes;
+        List<Entry> entries; // records appended so far, while this is the active segment
+        private int readers;
+        private boolean retired;
+
+        Segment(long number, Path path, FileChannel channel) {
+            this.number = number;
+            this.path = path;
+            this.channel = channel;
+        }
+
+        synchronized boolean acquire() {
+            if (retired) {
+                return false;
+            }
+            readers++;
+            return true;
+        }
+
+        synchronized void release() {
+            if (--readers == 0 && retired) {
+                closeChannel();
+            }
+        }
+
+        synchronized void retire() {
+            retired = true;
+            if (readers == 0) {
+                closeChannel();
+            }
+        }
+
+        private void closeChannel() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing left to lose.
+            }
+        }
+    }
+
+    // A record's header, as listed in the segment's .idx file.
+    private static final class Entry {
+        final byte type;
+        final String chunkId;
+        final long sequence;
+        final long position;
+        final long length;
+        final long checksum;
+        final int headerBytes;
+
+        Entry(byte type, String chunkId, long sequence, long position, long length, long checksum, int headerBytes) {
+            this.type = type;
+            this.chunkId = chunkId;
+            this.sequence = sequence;
+            this.position = position;
+            this.length = length;
+            this.checksum = checksum;
+            this.headerBytes = headerBytes;
+        }
+
+        long dataPosition() {
+            return position + headerBytes;
+        }
+
+        long recordBytes() {
+            return headerBytes + length;
+        }
+    }
+
+    private static final class Location {
+        final Segment segment;
+        final Entry entry;
+
+        Location(Segment segment, Entry entry) {
+            this.segment = segment;
+            this.entry = entry;
+        }
+    }
+
+    // A chunk to append: length bytes of source from sourcePosition. Uploads stage their data
+    // in temp; compaction reads it straight out of the old segment.
+    private static final class SegmentPending extends Pending {
+        final FileChannel source;
+        final long sourcePosition;
+        final long length;
+        final Path temp;
+        final Location moving; // for compaction: the live record being copied
+
+        SegmentPending(String chunkId, FileChannel source, long sourcePosition, long length, Path temp, Location moving) {
+            super(chunkId);
+            this.source = source;
+            this.sourcePosition = sourcePosition;
+            this.length = length;
+            this.temp = temp;
+            this.moving = moving;
+        }
+
+        @Override
+        public void write(ByteBuffer src, long position) throws IOException {
+            if (temp == null) {
+                throw new IOException("Chunk " + chunkId + " is not being uploaded");
+            }
+            if (position + src.remaining() > length) {
+                throw new IOException("Chunk " + chunkId + " is longer than announced");
+            }
+            writeFully(source, src, position);
+        }
+    }
+
+    private final Path segmentDirectory;
+    private final Path incoming;
+    private final long segmentBytes;
+    private final ConcurrentHashMap<String, Location> index = new ConcurrentHashMap<>();
+
+    // Everything below is guarded by appendLock. staleRecords counts, per chunk, the records
+    // still on disk that the index no longer points at.
+    private final Object appendLock = new Object();
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final Map<String, Integer> staleRecords = new HashMap<>();
+    private Segment active;
+    private long nextSequence = 1;
+
+    public SegmentChunkStore(String serverId, Path directory, boolean groupCommit) throws IOException {
+        this(serverId, directory, groupCommit, DEFAULT_SEGMENT_BYTES);
+    }
+
+    public SegmentChunkStore(String serverId, Path directory, boolean groupCommit, long segmentBytes) throws IOException {
+        super(serverId, directory, groupCommit);
+        this.segmentDirectory = directory.resolve(DIRECTORY);
+        this.segmentBytes = segmentBytes;
+        this.incoming = directory.resolve(FileChunkStore.INCOMING_DIRECTORY);
+        Files.createDirectories(incoming);
+        // Uploads cut short by a crash; their chunks were never published.
+        File[] leftovers = incoming.toFile().listFiles();
+        if (leftovers != null) {
+            for (File leftover : leftovers) {
+                leftover.delete();
+            }
+        }
+        load();
+        startCommitter();
+        migrateChunkFiles();
+        Thread compactor = new Thread(this::compactLoop, serverId + "-compactor");
+        compactor.setDaemon(true);
+        compactor.setPriority(Thread.MIN_PRIORITY);
+        compactor.start();
+        System.out.println(serverId + ": Loaded " + index.size() + " chunks from " + segments.size() + " segments");
+    }
+
+    @Override
+    public Pending create(String chunkId, long size) throws IOException {
+        if (chunkId.getBytes(StandardCharsets.UTF_8).length > 0xffff) {
+            throw new IOException("Chunk id is too long: " + chunkId);
+        }
+        Path temp = Files.createTempFile(incoming, "chunk", ".tmp");
+        return new SegmentPending(chunkId, FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE), 0, size,
+                temp, null);
+    }
+
+    // A short upload is turned away here rather than failing the batch it would be published in.
+    @Override
+    public void commit(Pending pending, long checksum) throws IOException {
+        SegmentPending staged = (SegmentPending) pending;
+        if (staged.temp != null && staged.source.size() < staged.length) {
+            discard(staged);
+            throw new IOException("Chunk " + pending.chunkId + " is shorter than announced");
+        }
+        super.commit(pending, checksum);
+    }
+
+    @Override
+    public void abort(Pending pending) {
+        discard((SegmentPending) pending);
+    }
+
+    private void discard(SegmentPending pending) {
+        if (pending.temp == null) {
+            return;
+        }
+        try {
+            pending.source.close();
+            Files.deleteIfExists(pending.temp);
+        } catch (IOException e) {
+            System.err.println(serverId + ": Error discarding staged chunk " + pending.chunkId + ": " + e.getMessage());
+        }
+    }
+
+    // The whole batch is appended and then fsynced once.
+    @Override
+    protected void publish(List<Pending> batch) throws IOException {
+        synchronized (appendLock) {
+            Segment segment = active;
+            List<Entry> log = segment.entries;
+            long start = segment.size;
+            int entries = log.size();
+            List<Location> written = new ArrayList<>(batch.size());
+            try {
+                for (Pending p : batch) {
+                    SegmentPending pending = (SegmentPending) p;
+                    long sequence = pending.moving != null ? pending.moving.entry.sequence : nextSequence++;
+                    written.add(append(PUT, pending.chunkId, sequence, pending, pending.checksum));
+                }
+                active.channel.force(false);
+            } catch (IOException e) {
+                rollBack(segment, log, start, entries);
+                throw e;
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                install((SegmentPending) batch.get(i), written.get(i));
+            }
+        }
+        for (Pending pending : batch) {
+            discard((SegmentPending) pending);
+        }
+    }
+
+    // Cuts unacknowledged records off again. If they spilled over, the segments opened since
+    // are unlinked and the segment the batch started in, which it sealed, becomes the active
+    // one again; log is that segment's record list from before the seal. Called with
+    // appendLock held.
+    private void rollBack(Segment segment, List<Entry> log, long start, int entries) throws IOException {
+        boolean spilled = active != segment;
+        if (spilled) {
+            for (Segment opened : new ArrayList<>(segments.tailMap(segment.number, false).values())) {
+                segments.remove(opened.number);
+                Files.deleteIfExists(indexFile(opened));
+                Files.deleteIfExists(opened.path);
+                opened.retire();
+            }
+            segment.entries = log;
+            active = segment;
+        }
+        segment.channel.truncate(start);
+        segment.size = start;
+        log.subList(entries, log.size()).clear();
+        if (spilled) {
+            // Written when the batch sealed it; the active segment is scanned on startup instead.
+            Files.deleteIfExists(indexFile(segment));
+            FileChunkStore.syncDirectory(segmentDirectory);
+        }
+    }
+
+    private void install(SegmentPending pending, Location location) {
+        String chunkId = pending.chunkId;
+        if (pending.moving != null && index.get(chunkId) != pending.moving) {
+            addStale(chunkId, 1); // overwritten or deleted while being moved
+            return;
+        }
+        Location previous = index.put(chunkId, location);
+        location.segment.liveBytes += location.entry.recordBytes();
+        if (previous != null) {
+            previous.segment.liveBytes -= previous.entry.recordBytes();
+            addStale(chunkId, 1);
+        }
+    }
+
+    @Override
+    public ChunkView open(String chunkId) {
+        while (true) {
+            Location location = index.get(chunkId);
+            if (location == null) {
+                return null;
+            }
+            if (location.segment.acquire()) {
+                Entry entry = location.entry;
+                return new ChunkView(location.segment.channel, entry.dataPosition(), entry.length, entry.checksum,
+                        location.segment::release);
+            }
+            // Compacted away just now; the index already points at the copy.
+        }
+    }
+
+    @Override
+    public List<String> chunkIds() {
+        return new ArrayList<>(index.keySet());
+    }
+
+    @Override
+    public void delete(String chunkId) throws IOException {
+        delete(Collections.singletonList(chunkId));
+    }
+
+    // Appends a tombstone per chunk and fsyncs them together.
+    @Override
+    public void delete(List<String> chunkIds) throws IOException {
+        synchronized (appendLock) {
+            Segment segment = active;
+            List<Entry> log = segment.entries;
+            long start = segment.size;
+            int entries = log.size();
+            Set<String> deleted = new LinkedHashSet<>();
+            try {
+                for (String chunkId : chunkIds) {
+                    if (index.containsKey(chunkId) && deleted.add(chunkId)) {
+                        append(DELETE, chunkId, nextSequence++, null, ChunkChecksums.NONE);
+                    }
+                }
+                if (deleted.isEmpty()) {
+                    return;
+                }
+                active.channel.force(false);
+            } catch (IOException e) {
+                rollBack(segment, log, start, entries);
+                throw e;
+            }
+            for (String chunkId : deleted) {
+                Location previous = index.remove(chunkId);
+                previous.segment.liveBytes -= previous.entry.recordBytes();
+                addStale(chunkId, 1);
+            }
+        }
+    }
+
+    private Location append(byte type, String chunkId, long sequence, SegmentPending data, long checksum) throws IOException {
+        if (active.size >= segmentBytes) {
+            seal();
+        }
+        byte[] id = chunkId.getBytes(StandardCharsets.UTF_8);
+        long length = data != null ? data.length : 0;
+        ByteBuffer header = ByteBuffer.allocate(FIXED_HEADER_BYTES + id.length + 4);
+        header.putInt(RECORD_MAGIC).put(type).putLong(sequence).putLong(length).putLong(checksum).putShort((short) id.length).put(id);
+        header.putInt((int) ChunkChecksums.of(header.array(), 0, header.position()));
+        header.flip();
+        Entry entry = new Entry(type, chunkId, sequence, active.size, length, checksum, header.capacity());
+        writeFully(active.channel, header, entry.position);
+        if (data != null) {
+            // transferTo writes at the target's own position, which nothing else relies on.
+            active.channel.position(entry.dataPosition());
+            long copied = 0;
+            while (copied < length) {
+                long n = data.source.transferTo(data.sourcePosition + copied, length - copied, active.channel);
+                if (n <= 0) {
+                    throw new IOException("Chunk " + chunkId + " is shorter than announced");
+                }
+                copied += n;
+            }
+        }
+        active.size += entry.recordBytes();
+        active.entries.add(entry);
+        return new Location(active, entry);
+    }
+
+    // Called with appendLock held.
+    private void seal() throws IOException {
+        active.channel.force(false);
+        writeIndexFile(active, active.entries);
+        active.entries = null;
+        Segment next = openSegment(active.number + 1);
+        next.entries = new ArrayList<>();
+        segments.put(next.number, next);
+        active = next;
+        FileChunkStore.syncDirectory(segmentDirectory);
+    }
+
+    private void load() throws IOException {
+        Files.createDirectories(segmentDirectory);
+        TreeMap<Long, Path> found = new TreeMap<>();
+        File[] files = segmentDirectory.toFile().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Matcher name = SEGMENT_NAME.matcher(file.getName());
+                if (name.matches()) {
+                    found.put(Long.parseLong(name.group(1)), file.toPath());
+                } else if (file.getName().endsWith(".tmp")) {
+                    file.delete(); // an index file cut short by a crash
+                }
+            }
+        }
+        Map<String, Long> deletedAt = new HashMap<>();
+        for (Map.Entry<Long, Path> file : found.entrySet()) {
+            boolean last = file.getKey().equals(found.lastKey());
+            Segment segment = new Segment(file.getKey(), file.getValue(),
+                    FileChannel.open(file.getValue(), StandardOpenOption.READ, StandardOpenOption.WRITE));
+            List<Entry> entries = last ? null : readIndexFile(segment);
+            if (entries == null) {
+                entries = scan(segment, last);
+                if (!last) {
+                    writeIndexFile(segment, entries);
+                }
+            }
+            if (!last) {
+                segment.size = segment.channel.size();
+            }
+            for (Entry entry : entries) {
+                replay(segment, entry, deletedAt);
+            }
+            segments.put(segment.number, segment);
+            if (last) {
+                segment.entries = new ArrayList<>(entries);
+                active = segment;
+            }
+        }
+        if (active == null) {
+            active = openSegment(1);
+            active.entries = new ArrayList<>();
+            segments.put(active.number, active);
+        }
+    }
+
+    private void replay(Segment segment, Entry entry, Map<String, Long> deletedAt) {
+        nextSequence = Math.max(nextSequence, entry.sequence + 1);
+        String chunkId = entry.chunkId;
+        Location current = index.get(chunkId);
+        long deleted = deletedAt.getOrDefault(chunkId, 0L);
+        if (entry.type == PUT) {
+            if ((current != null && current.entry.sequence >= entry.sequence) || deleted > entry.sequence) {
+                addStale(chunkId, 1);
+                return;
+            }
+            if (current != null) {
+                current.segment.liveBytes -= current.entry.recordBytes();
+                addStale(chunkId, 1);
+            }
+            index.put(chunkId, new Location(segment, entry));
+            segment.liveBytes += entry.recordBytes();
+        } else {
+            deletedAt.put(chunkId, Math.max(deleted, entry.sequence));
+            if (current != null && current.entry.sequence < entry.sequence) {
+                index.remove(chunkId);
+                current.segment.liveBytes -= current.entry.recordBytes();
+                addStale(chunkId, 1);
+            }
+        }
+    }
+
+    // Reads the records of a segment from its data. verify also checks each chunk against its
+    // checksum and cuts the segment off at the first bad record, which for the segment that
+    // was being appended to is one torn by a crash.
+    private List<Entry> scan(Segment segment, boolean verify) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        long end = segment.channel.size();
+        long position = 0;
+        while (position < end) {
+            Entry entry = readHeader(segment.channel, position, end);
+            if (entry != null && verify && entry.type == PUT && entry.checksum != ChunkChecksums.NONE
+                    && ChunkChecksums.of(segment.channel, entry.dataPosition(), entry.length) != entry.checksum) {
+                entry = null;
+            }
+            if (entry == null) {
+                System.err.println(serverId + ": " + segment.path.getFileName() + " has a damaged record at offset " + position
+                        + (verify ? "; truncating it there" : "; ignoring the rest of it"));
+                if (verify) {
+                    segment.channel.truncate(position);
+                    segment.channel.force(true);
+                }
+                break;
+            }
+            entries.add(entry);
+            position += entry.recordBytes();
+        }
+        segment.size = position;
+        return entries;
+    }
+
+    private static Entry readHeader(FileChannel channel, long position, long end) throws IOException {
+        if (end - position < FIXED_HEADER_BYTES) {
+            return null;
+        }
+        ByteBuffer fixed = ByteBuffer.allocate(FIXED_HEADER_BYTES);
+        readFully(channel, fixed, position);
+        fixed.flip();
+        int magic = fixed.getInt();
+        byte type = fixed.get();
+        long sequence = fixed.getLong();
+        long length = fixed.getLong();
+        long checksum = fixed.getLong();
+        int idBytes = fixed.getShort() & 0xffff;
+        if (magic != RECORD_MAGIC || (type != PUT && type != DELETE) || length < 0
+                || position + FIXED_HEADER_BYTES + idBytes + 4 > end) {
+            return null;
+        }
+        ByteBuffer rest = ByteBuffer.allocate(idBytes + 4);
+        readFully(channel, rest, position + FIXED_HEADER_BYTES);
+        byte[] header = new byte[FIXED_HEADER_BYTES + idBytes];
+        System.arraycopy(fixed.array(), 0, header, 0, FIXED_HEADER_BYTES);
+        System.arraycopy(rest.array(), 0, header, FIXED_HEADER_BYTES, idBytes);
+        int headerCrc = ByteBuffer.wrap(rest.array(), idBytes, 4).getInt();
+        if ((int) ChunkChecksums.of(header, 0, header.length) != headerCrc) {
+            return null;
+        }
+        int headerBytes = header.length + 4;
+        if (position + headerBytes + length > end) {
+            return null;
+        }
+        String chunkId = new String(header, FIXED_HEADER_BYTES, idBytes, StandardCharsets.UTF_8);
+        return new Entry(type, chunkId, sequence, position, length, checksum, headerBytes);
+    }
+
+    // Index file: magic (4) | count (4) | per record: type, sequence, position, length, checksum,
+    // header bytes, chunk id | CRC32C of all of the above (8)
+    private void writeIndexFile(Segment segment, List<Entry> entries) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(INDEX_MAGIC);
+        out.writeInt(entries.size());
+        for (Entry entry : entries) {
+            out.writeByte(entry.type);
+            out.writeLong(entry.sequence);
+            out.writeLong(entry.position);
+            out.writeLong(entry.length);
+            out.writeLong(entry.checksum);
+            out.writeInt(entry.headerBytes);
+            out.writeUTF(entry.chunkId);
+        }
+        out.writeLong(ChunkChecksums.of(bytes.toByteArray(), 0, bytes.size()));
+        Path indexFile = indexFile(segment);
+        Path temp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try (FileChannel file = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(file, ByteBuffer.wrap(bytes.toByteArray()), 0);
+            file.force(false);
+        }
+        Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // The records listed in the segment's index file, or null if it is missing or damaged.
+    private List<Entry> readIndexFile(Segment segment) throws IOException {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(indexFile(segment));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (bytes.length < 16 || ByteBuffer.wrap(bytes, bytes.length - 8, 8).getLong() != ChunkChecksums.of(bytes, 0, bytes.length - 8)) {
+            System.err.println(serverId + ": Ignoring damaged index of " + segment.path.getFileName());
+            return null;
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - 8));
+        if (in.readInt() != INDEX_MAGIC) {
+            return null;
+        }
+        int count = in.readInt();
+        List<Entry> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte type = in.readByte();
+            long sequence = in.readLong();
+            long position = in.readLong();
+            long length = in.readLong();
+            long checksum = in.readLong();
+            int headerBytes = in.readInt();
+            entries.add(new Entry(type, in.readUTF(), sequence, position, length, checksum, headerBytes));
+        }
+        return entries;
+    }
+
+    private Segment openSegment(long number) throws IOException {
+        Path path = segmentDirectory.resolve("segment-" + number + ".log");
+        return new Segment(number, path, FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE));
+    }
+
+    private Path indexFile(Segment segment) {
+        return segmentDirectory.resolve("segment-" + segment.number + ".idx");
+    }
+
+    private void addStale(String chunkId, int delta) {
+        staleRecords.merge(chunkId, delta, (a, b) -> a + b == 0 ? null : a + b);
+    }
+
+    private void compactLoop() {
+        while (true) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(COMPACTION_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                compact();
+            } catch (IOException e) {
+                System.err.println(serverId + ": Segment compaction failed: " + e.getMessage());
+            }
+        }
+    }
+
+    // Compacts every sealed segment that is mostly dead. Returns how many there were.
+    int compact() throws IOException {
+        List<Segment> candidates = new ArrayList<>();
+        synchronized (appendLock) {
+            for (Segment segment : segments.values()) {
+                if (segment != active && segment.liveBytes < segment.size * COMPACT_BELOW_LIVE_RATIO) {
+                    candidates.add(segment);
+                }
+            }
+        }
+        for (Segment segment : candidates) {
+            compact(segment);
+        }
+        return candidates.size();
+    }
+
+    private void compact(Segment segment) throws IOException {
+        List<Entry> entries = readIndexFile(segment);
+        if (entries == null) {
+            entries = scan(segment, false);
+        }
+        long moved = 0;
+        for (Entry entry : entries) {
+            Location live = index.get(entry.chunkId);
+            if (entry.type != PUT || !isLocation(live, segment, entry)) {
+                continue;
+            }
+            SegmentPending pending = new SegmentPending(entry.chunkId, segment.channel, entry.dataPosition(), entry.length, null, live);
+            commit(pending, entry.checksum);
+            moved += entry.recordBytes();
+        }
+        long carried = 0;
+        synchronized (appendLock) {
+            for (Entry entry : entries) {
+                if (entry.type == PUT && isLocation(index.get(entry.chunkId), segment, entry)) {
+                    return; // still live after all; try again next round
+                }
+            }
+            for (Entry entry : entries) {
+                if (entry.type == PUT) {
+                    addStale(entry.chunkId, -1);
+                }
+            }
+            Segment target = active;
+            List<Entry> log = target.entries;
+            long start = target.size;
+            int logged = log.size();
+            try {
+                for (Entry entry : entries) {
+                    if (entry.type == DELETE && !index.containsKey(entry.chunkId) && staleRecords.containsKey(entry.chunkId)) {
+                        append(DELETE, entry.chunkId, entry.sequence, null, ChunkChecksums.NONE);
+                        carried++;
+                    }
+                }
+                if (carried > 0) {
+                    active.channel.force(false);
+                }
+            } catch (IOException e) {
+                rollBack(target, log, start, logged);
+                for (Entry entry : entries) {
+                    if (entry.type == PUT) {
+                        addStale(entry.chunkId, 1);
+                    }
+                }
+                throw e;
+            }
+            segments.remove(segment.number);
+        }
+        Files.deleteIfExists(indexFile(segment));
+        Files.deleteIfExists(segment.path);
+        FileChunkStore.syncDirectory(segmentDirectory);
+        segment.retire();
+        System.out.println(serverId + ": Compacted " + segment.path.getFileName() + ": moved " + moved + " of " + segment.size
+                + " bytes, kept " + carried + " deletion records");
+    }
+
+    private static boolean isLocation(Location location, Segment segment, Entry entry) {
+        return location != null && location.segment == segment && location.entry.position == entry.position;
+    }
+
+    // Moves chunks stored one per file, by FileChunkStore, into segments.
+    private void migrateChunkFiles() throws IOException {
+        File[] files = directory.toFile().listFiles(File::isFile);
+        if (files == null || files.length == 0) {
+            return;
+        }
+        int migrated = 0;
+        for (File file : files) {
+            Path chunkFile = file.toPath();
+            String chunkId = file.getName();
+            byte[] data;
+            long expected;
+            try (ChunkView view = FileChunkStore.openChunkFile(chunkFile)) {
+                ByteBuffer buffer = ByteBuffer.allocate((int) view.length());
+                while (buffer.hasRemaining() && view.read(buffer, buffer.position()) >= 0) {
+                    // Keep reading.
+                }
+                data = buffer.array();
+                expected = view.checksum();
+            }
+            long actual = ChunkChecksums.of(data, 0, data.length);
+            if (actual != expected) {
+                Path quarantined = directory.resolve(QUARANTINE_DIRECTORY).resolve(chunkId);
+                Files.createDirectories(quarantined.getParent());
+                Files.move(chunkFile, quarantined, StandardCopyOption.REPLACE_EXISTING);
+                System.err.println(serverId + ": Chunk " + chunkId + " is corrupt; moved it to " + quarantined + " instead of migrating it");
+                continue;
+            }
+            write(chunkId, ByteBuffer.wrap(data), actual);
+            Files.delete(chunkFile);
+            migrated++;
+        }
+        System.out.println(serverId + ": Moved " + migrated + " chunk files into segments");
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("Unexpected end of segment at offset " + position);
+            }
+            position += n;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
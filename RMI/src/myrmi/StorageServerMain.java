@@ -1,19 +1,32 @@
 package myrmi;
 
 import java.io.File;
-import java.rmi.Naming;
+import java.rmi.NoSuchObjectException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class StorageServerMain {
+    private static final long HEARTBEAT_INTERVAL_MS = 3000;
+
     public static void main(String[] args) {
         if (args.length < 2) {
-            System.out.println("Usage: java myrmi.StorageServerMain <serverName> <dataDirectory>");
+            System.out.println("Usage: java myrmi.StorageServerMain <serverName> <dataDirectory> [transferPort] [cacheMegabytes] [group|sync] [files|segments]");
             System.exit(1);
         }
 
         String serverName = args[0];
         String dataDirectory = args[1];
+        int transferPort = args.length > 2 ? Integer.parseInt(args[2]) : 0; // 0 = any free port
+        long cacheBytes = args.length > 3 ? Long.parseLong(args[3]) << 20 : StorageServiceImpl.DEFAULT_CACHE_BYTES; // 0 = no cache
+        boolean groupCommit = args.length <= 4 || !args[4].equals("sync"); // sync = one fsync round per chunk
+        boolean segments = args.length > 5 && args[5].equals("segments"); // segments = append-only segment files
         String metadataHost = "localhost"; 
         int metadataPort = 1099;
 
@@ -24,29 +37,35 @@ public class StorageServerMain {
                 System.out.println("Created data directory: " + dataDirectory);
             }
             
-            StorageService storageService = new StorageServiceImpl(serverName, dataDirectory); 
+            StorageServiceImpl storageService = new StorageServiceImpl(serverName, dataDirectory, transferPort, cacheBytes, groupCommit, segments); 
             Registry registry = LocateRegistry.getRegistry(); 
             registry.rebind(serverName, storageService);
             System.out.println("Storage Server " + serverName + " is Ready!");
 
-            // Look up Metadata Service
-            MetadataService metadataService = (MetadataService) Naming.lookup("rmi://" + metadataHost + ":" + metadataPort + "/MetadataService");
+            // Look up Metadata Service (every shard of it; each keeps its own view of this server)
+            // (copy-on-write: a heartbeat swaps in a fresh stub after the metadata server restarts)
+            List<MetadataService> metadataShards = new CopyOnWriteArrayList<>(MetadataShards.lookup(LocateRegistry.getRegistry(metadataHost, metadataPort)));
             
             // Register with Metadata Service
-            metadataService.registerStorageServer(serverName, "localhost", metadataPort); 
+            for (int shard = 0; shard < metadataShards.size(); shard++) {
+                metadataShards.get(shard).registerStorageServer(serverName, "localhost", metadataPort);
+                startHeartbeat(metadataShards, shard, serverName, metadataHost, metadataPort, storageService);
+            }
             
           
-            System.out.println("Scanning data directory '" + dataDirectory + "' for existing chunks...");
-            File[] chunkFiles = dir.listFiles();
-            if (chunkFiles != null) {
-                for (File chunkFile : chunkFiles) {
-                    if (chunkFile.isFile()) { 
-                        String chunkName = chunkFile.getName();
-                        metadataService.registerChunk(chunkName, serverName);
-                    }
-                }
+            System.out.println("Collecting existing chunks in '" + dataDirectory + "'...");
+            List<String> allChunkNames = storageService.chunkIds();
+            for (int shard = 0; shard < metadataShards.size(); shard++) {
+                reportChunks(metadataShards, shard, serverName, allChunkNames);
             }
-            System.out.println("Finished scanning and registering existing chunks for " + serverName + ".");
+            // Started after the block report, so a chunk it quarantines is reported as lost rather than found.
+            storageService.startScrubber(ChunkScrubber.DEFAULT_BYTES_PER_SECOND, ChunkScrubber.DEFAULT_PASS_INTERVAL_MS, chunkId -> {
+                try {
+                    metadataShards.get(MetadataShards.shardOfChunk(chunkId, metadataShards.size())).chunkCorrupt(chunkId, serverName);
+                } catch (Exception e) {
+                    System.err.println("Reporting corrupt chunk " + chunkId + " failed: " + e.getMessage());
+                }
+            });
           
 
         } catch (Exception e) {
@@ -54,4 +73,75 @@ public class StorageServerMain {
             e.printStackTrace();
         }
     }
-}
\ No newline at end of file
+
+    // Sends the chunks this server holds for one shard. Bucket digests go first; only buckets the
+    // metadata server disagrees on are sent in full, as compressed batches of names.
+    private static void reportChunks(List<MetadataService> metadataShards, int shard, String serverName,
+                                     List<String> allChunkNames) throws Exception {
+        MetadataService metadataService = metadataShards.get(shard);
+        // Each shard is told only about its own chunks.
+        List<String> chunkNames = new ArrayList<>();
+        for (String chunkName : allChunkNames) {
+            if (MetadataShards.shardOfChunk(chunkName, metadataShards.size()) == shard) {
+                chunkNames.add(chunkName);
+            }
+        }
+        List<Integer> staleBuckets = metadataService.compareChunkInventory(serverName, ChunkInventory.digest(chunkNames));
+        if (!staleBuckets.isEmpty()) {
+            List<String> report = ChunkInventory.inBuckets(chunkNames, staleBuckets);
+            Collections.sort(report);
+            int from = 0;
+            do {
+                int to = Math.min(from + ChunkInventory.REPORT_BATCH_SIZE, report.size());
+                byte[] batch = ChunkInventory.encodeBatch(report.subList(from, to));
+                metadataService.reportChunks(serverName, staleBuckets, batch, to == report.size());
+                from = to;
+            } while (from < report.size());
+        }
+        System.out.println("Finished reporting " + chunkNames.size() + " chunks for " + serverName + " ("
+                + staleBuckets.size() + " buckets sent"
+                + (metadataShards.size() > 1 ? " to shard " + shard + ")." : ")."));
+    }
+
+    // Capacity and load reports drive placement on the metadata server. If the metadata server
+    // no longer knows this server (it restarted or lost its state), register again and resend
+    // the block report.
+    private static void startHeartbeat(List<MetadataService> metadataShards, int shard, String serverName,
+                                       String metadataHost, int metadataPort, StorageServiceImpl storageService) {
+        ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "heartbeat");
+            t.setDaemon(true);
+            return t;
+        });
+        heartbeat.scheduleWithFixedDelay(() -> {
+            try {
+                MetadataService metadataService = metadataShards.get(shard);
+                try {
+                    metadataService.heartbeat(storageService.currentStats());
+                } catch (NoSuchObjectException | java.rmi.ConnectException e) {
+                    // The stub is from before a restart; the new instance is bound under the same name.
+                    // The registry may have restarted with it, so bind this server again as well.
+                    metadataService = MetadataShards.lookup(LocateRegistry.getRegistry(metadataHost, metadataPort)).get(shard);
+                    metadataShards.set(shard, metadataService);
+                    LocateRegistry.getRegistry().rebind(serverName, storageService);
+                    metadataService.heartbeat(storageService.currentStats());
+                }
+            } catch (Exception e) {
+                if (!(e.getCause() instanceof UnknownStorageServerException)) {
+                    System.err.println("Heartbeat to metadata server failed: " + e.getMessage());
+                    return;
+                }
+                // Delivered wrapped in a ServerException.
+                System.err.println("Metadata server does not know " + serverName + "; registering again.");
+                try {
+                    MetadataService metadataService = metadataShards.get(shard);
+                    metadataService.registerStorageServer(serverName, "localhost", metadataPort);
+                    reportChunks(metadataShards, shard, serverName, storageService.chunkIds());
+                    metadataService.heartbeat(storageService.currentStats());
+                } catch (Exception retry) {
+                    System.err.println("Registering " + serverName + " again failed: " + retry.getMessage());
+                }
+            }
+        }, 0, HEARTBEAT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+}
@@ -2,10 +2,41 @@ package myrmi;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
 
 public interface StorageService extends Remote {
 
  void uploadChunk(String chunkId, byte[] chunkData) throws RemoteException;
 
+ // As above, refusing the chunk unless its CRC32C matches checksum (ChunkChecksums.NONE skips the check).
+ void uploadChunk(String chunkId, byte[] chunkData, long checksum) throws RemoteException;
+
  byte[] downloadChunk(String chunkId) throws RemoteException;
+
+ // Up to length bytes of the chunk starting at offset; shorter only at the end of the chunk.
+ byte[] readChunkRange(String chunkId, long offset, int length) throws RemoteException;
+
+ // Port of the streaming chunk channel (see ChunkTransferServer), or 0 if this server has none.
+ int getTransferPort() throws RemoteException;
+
+ // Copies a stored chunk to targetServer (registered in the RMI registry at targetRegistry,
+ // "host:port"), averaging at most bytesPerSecond (0 = unlimited). Used by the metadata
+ // server to restore lost replicas without routing the data through itself.
+ void replicateChunk(String chunkId, String targetServer, String targetRegistry, long bytesPerSecond) throws RemoteException;
+
+ // Every chunk this server holds, encoded with ChunkInventory.encodeBatch. Unlike the block
+ // report, this includes chunks the metadata server was never told about.
+ byte[] listChunks() throws RemoteException;
+
+ // One page of the same, in name order: up to limit chunk ids after cursor (null = from the
+ // start). Pass the last id of a page as the next cursor; a page shorter than limit is the
+ // last one. Chunks stored while a listing is under way may not show up in it.
+ byte[] listChunks(String cursor, int limit) throws RemoteException;
+
+ // As above, but only the chunks that belong to metadata shard shard of shards (see
+ // MetadataShards.shardOfChunk), so each shard's garbage collector lists just its own.
+ byte[] listChunks(int shard, int shards, String cursor, int limit) throws RemoteException;
+
+ // Deletes the chunks, skipping any that are already gone. Returns how many were deleted.
+ int deleteChunks(List<String> chunkIds) throws RemoteException;
 }
\ No newline at end of file
@@ -1,20 +1,58 @@
 package myrmi;
 
 import java.io.*;
+import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
 import java.rmi.server.UnicastRemoteObject;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 public class StorageServiceImpl extends UnicastRemoteObject implements StorageService {
+ public static final long DEFAULT_CACHE_BYTES = 256L * 1024 * 1024;
+
  private String storageDirectory;
  private String serverId; 
+ private ChunkTransferServer transferServer;
+ private final AtomicInteger inFlightRequests = new AtomicInteger();
+ private final HotChunkCache hotChunks;
+ private final ChunkStore chunkStore;
+ private final Map<String, String[]> listings = new ConcurrentHashMap<>(); // see listChunks(shard, shards, cursor, limit)
 
  public StorageServiceImpl(String serverId, String storageDirectory) throws RemoteException {
+     this(serverId, storageDirectory, 0);
+ }
+
+ public StorageServiceImpl(String serverId, String storageDirectory, int transferPort) throws RemoteException {
+     this(serverId, storageDirectory, transferPort, DEFAULT_CACHE_BYTES);
+ }
+
+ public StorageServiceImpl(String serverId, String storageDirectory, int transferPort, long cacheBytes) throws RemoteException {
+     this(serverId, storageDirectory, transferPort, cacheBytes, true);
+ }
+
+ public StorageServiceImpl(String serverId, String storageDirectory, int transferPort, long cacheBytes, boolean groupCommit) throws RemoteException {
+     this(serverId, storageDirectory, transferPort, cacheBytes, groupCommit, false);
+ }
+
+ // groupCommit batches the fsyncs of concurrent chunk writes, see ChunkStore. segments packs
+ // chunks into append-only segment files (SegmentChunkStore) instead of one file per chunk.
+ public StorageServiceImpl(String serverId, String storageDirectory, int transferPort, long cacheBytes, boolean groupCommit,
+         boolean segments) throws RemoteException {
      super();
      this.serverId = serverId;
      this.storageDirectory = storageDirectory;
+     this.hotChunks = new HotChunkCache(cacheBytes);
      
      Path path = Paths.get(storageDirectory);
      if (!Files.exists(path)) {
@@ -26,32 +64,264 @@ public class StorageServiceImpl extends UnicastRemoteObject implements StorageSe
              throw new RemoteException("Failed to initialize storage directory", e);
          }
      }
+     try {
+         chunkStore = segments ? new SegmentChunkStore(serverId, path, groupCommit) : new FileChunkStore(serverId, path, groupCommit);
+     } catch (IOException e) {
+         System.err.println("Error preparing storage directory: " + e.getMessage());
+         throw new RemoteException("Failed to initialize storage directory", e);
+     }
+     try {
+         transferServer = new ChunkTransferServer(serverId, chunkStore, transferPort, inFlightRequests, hotChunks);
+         transferServer.start();
+     } catch (IOException e) {
+         System.err.println("Error opening chunk transfer channel: " + e.getMessage());
+         throw new RemoteException("Failed to open chunk transfer channel", e);
+     }
      System.out.println(serverId + " initialized, storing chunks in: " + storageDirectory);
  }
 
+ @Override
+ public int getTransferPort() throws RemoteException {
+     return transferServer.getPort();
+ }
+
+ // Snapshot for the metadata server heartbeat.
+ public StorageStats currentStats() {
+     File dir = new File(storageDirectory);
+     return new StorageStats(serverId, dir.getTotalSpace(), dir.getUsableSpace(), inFlightRequests.get());
+ }
+
+ // Scrubs this server's chunks in the background. Corrupt chunks are moved to .corrupt/
+ // (kept for inspection, never served again) and handed to onCorrupt.
+ public ChunkScrubber startScrubber(long bytesPerSecond, long passIntervalMs, Consumer<String> onCorrupt) {
+     ChunkScrubber scrubber = new ChunkScrubber(serverId, chunkStore, bytesPerSecond, passIntervalMs, chunkId -> {
+         quarantine(chunkId);
+         onCorrupt.accept(chunkId);
+     });
+     scrubber.start();
+     return scrubber;
+ }
+
+ private void quarantine(String chunkId) {
+     try {
+         chunkStore.quarantine(chunkId);
+         System.err.println(serverId + ": Chunk " + chunkId + " is corrupt; moved it to " + ChunkStore.QUARANTINE_DIRECTORY + "/");
+     } catch (IOException e) {
+         System.err.println(serverId + ": Error quarantining chunk " + chunkId + ": " + e.getMessage());
+     } finally {
+         hotChunks.invalidate(chunkId);
+     }
+ }
+
+ public HotChunkCache getHotChunks() {
+     return hotChunks;
+ }
+
+ // The chunks this server holds, for the block report.
+ public List<String> chunkIds() throws IOException {
+     return chunkStore.chunkIds();
+ }
+
+ @Override
+ public byte[] readChunkRange(String chunkId, long offset, int length) throws RemoteException {
+     if (offset < 0 || length < 0) {
+         throw new RemoteException("Invalid range " + offset + "+" + length + " of chunk " + chunkId);
+     }
+     inFlightRequests.incrementAndGet();
+     try (ChunkStore.ChunkView chunk = openChunk(chunkId)) {
+         ByteBuffer cachedChunk = hotChunks.get(chunkId, chunk);
+         if (cachedChunk != null) {
+             byte[] range = new byte[(int) Math.max(0, Math.min(length, cachedChunk.remaining() - offset))];
+             if (range.length > 0) {
+                 cachedChunk.position((int) offset);
+                 cachedChunk.get(range);
+             }
+             return range;
+         }
+         ByteBuffer range = ByteBuffer.allocate((int) Math.max(0, Math.min(length, chunk.length() - offset)));
+         while (range.hasRemaining()) {
+             if (chunk.read(range, offset + range.position()) < 0) {
+                 break;
+             }
+         }
+         return range.array();
+     } catch (IOException e) {
+         System.err.println(serverId + ": Error reading range of chunk " + chunkId + ": " + e.getMessage());
+         throw new RemoteException("Failed to read chunk " + chunkId, e);
+     } finally {
+         inFlightRequests.decrementAndGet();
+     }
+ }
+
+ @Override
+ public void replicateChunk(String chunkId, String targetServer, String targetRegistry, long bytesPerSecond) throws RemoteException {
+     int colon = targetRegistry.lastIndexOf(':');
+     String targetHost = targetRegistry.substring(0, colon);
+     inFlightRequests.incrementAndGet();
+     try (ChunkStore.ChunkView chunk = openChunk(chunkId)) {
+         StorageService target = (StorageService) LocateRegistry.getRegistry(targetHost,
+                 Integer.parseInt(targetRegistry.substring(colon + 1))).lookup(targetServer);
+         int transferPort = target.getTransferPort();
+         if (transferPort > 0) {
+             // The target checks the copy against our stored checksum, so a damaged source is refused.
+             ChunkTransferClient.upload(targetHost, transferPort, chunkId, chunk, bytesPerSecond);
+         } else {
+             target.uploadChunk(chunkId, readAll(chunk), chunk.checksum());
+         }
+         System.out.println(serverId + ": Replicated chunk " + chunkId + " to " + targetServer);
+     } catch (IOException | NotBoundException e) {
+         System.err.println(serverId + ": Error replicating chunk " + chunkId + " to " + targetServer + ": " + e.getMessage());
+         throw new RemoteException("Failed to replicate chunk " + chunkId + " to " + targetServer, e);
+     } finally {
+         inFlightRequests.decrementAndGet();
+     }
+ }
+
+ @Override
+ public byte[] listChunks() throws RemoteException {
+     try {
+         return ChunkInventory.encodeBatch(chunkStore.chunkIds());
+     } catch (IOException e) {
+         System.err.println(serverId + ": Error listing chunks: " + e.getMessage());
+         throw new RemoteException("Failed to list chunks", e);
+     }
+ }
+
+ @Override
+ public byte[] listChunks(String cursor, int limit) throws RemoteException {
+     return listChunks(0, 1, cursor, limit);
+ }
+
+ // A listing pages through a sorted copy of the shard's chunk ids, taken when it starts from
+ // the beginning, so each page is a binary search and a slice of at most limit ids. Copies
+ // are kept per shard: a new listing replaces only its own shard's copy, and the copy is
+ // dropped by the page that comes up short, which is the last one. A listing abandoned
+ // midway leaves its copy until the shard's next listing replaces it.
+ @Override
+ public byte[] listChunks(int shard, int shards, String cursor, int limit) throws RemoteException {
+     try {
+         String key = shard + "/" + shards;
+         String[] snapshot = listings.get(key);
+         if (cursor == null || snapshot == null) {
+             List<String> owned = new ArrayList<>();
+             for (String chunkId : chunkStore.chunkIds()) {
+                 if (MetadataShards.shardOfChunk(chunkId, shards) == shard) {
+                     owned.add(chunkId);
+                 }
+             }
+             snapshot = owned.toArray(new String[0]);
+             Arrays.sort(snapshot);
+             listings.put(key, snapshot);
+         }
+         int from = 0;
+         if (cursor != null) {
+             int found = Arrays.binarySearch(snapshot, cursor);
+             from = found >= 0 ? found + 1 : -found - 1;
+         }
+         int to = (int) Math.min(snapshot.length, (long) from + limit);
+         if (to - from < limit) {
+             listings.remove(key, snapshot);
+         }
+         return ChunkInventory.encodeBatch(Arrays.asList(snapshot).subList(from, to));
+     } catch (IOException e) {
+         System.err.println(serverId + ": Error listing chunks: " + e.getMessage());
+         throw new RemoteException("Failed to list chunks", e);
+     }
+ }
+
+ // Called by the metadata server's garbage collector for chunks no file refers to.
+ @Override
+ public int deleteChunks(List<String> chunkIds) throws RemoteException {
+     List<String> existing = new ArrayList<>(chunkIds.size());
+     inFlightRequests.incrementAndGet();
+     try {
+         for (String chunkId : chunkIds) {
+             if (chunkId.isEmpty() || chunkId.contains("/") || chunkId.contains("\\") || chunkId.startsWith(".")) {
+                 continue;
+             }
+             try (ChunkStore.ChunkView chunk = chunkStore.open(chunkId)) {
+                 if (chunk == null) {
+                     continue;
+                 }
+             }
+             existing.add(chunkId);
+         }
+         chunkStore.delete(existing);
+     } catch (IOException e) {
+         System.err.println(serverId + ": Error deleting chunks: " + e.getMessage());
+         throw new RemoteException("Failed to delete chunks", e);
+     } finally {
+         for (String chunkId : chunkIds) {
+             hotChunks.invalidate(chunkId);
+         }
+         inFlightRequests.decrementAndGet();
+     }
+     System.out.println(serverId + ": Deleted " + existing.size() + " unreferenced chunks");
+     return existing.size();
+ }
+
  @Override
  public void uploadChunk(String chunkId, byte[] chunkData) throws RemoteException {
-     Path filePath = Paths.get(storageDirectory, chunkId);
-     try (FileOutputStream fos = new FileOutputStream(filePath.toFile())) {
-         fos.write(chunkData);
+     uploadChunk(chunkId, chunkData, ChunkChecksums.NONE);
+ }
+
+ @Override
+ public void uploadChunk(String chunkId, byte[] chunkData, long checksum) throws RemoteException {
+     long actual = ChunkChecksums.of(chunkData, 0, chunkData.length);
+     if (checksum != ChunkChecksums.NONE && actual != checksum) {
+         System.err.println(serverId + ": Refused chunk " + chunkId + ": checksum mismatch");
+         throw new RemoteException("Chunk " + chunkId + " arrived damaged", ChunkChecksums.mismatch(chunkId, checksum, actual));
+     }
+     inFlightRequests.incrementAndGet();
+     try {
+         chunkStore.write(chunkId, ByteBuffer.wrap(chunkData), actual);
          System.out.println(serverId + ": Uploaded chunk " + chunkId + " (" + chunkData.length + " bytes)");
      } catch (IOException e) {
          System.err.println(serverId + ": Error uploading chunk " + chunkId + ": " + e.getMessage());
          throw new RemoteException("Failed to upload chunk", e);
+     } finally {
+         hotChunks.invalidate(chunkId);
+         inFlightRequests.decrementAndGet();
      }
  }
 
  @Override
  public byte[] downloadChunk(String chunkId) throws RemoteException {
-     Path filePath = Paths.get(storageDirectory, chunkId);
-     try {
-         byte[] data = Files.readAllBytes(filePath);
+     inFlightRequests.incrementAndGet();
+     try (ChunkStore.ChunkView chunk = openChunk(chunkId)) {
+         ByteBuffer cachedChunk = hotChunks.get(chunkId, chunk);
+         byte[] data;
+         if (cachedChunk != null) {
+             data = new byte[cachedChunk.remaining()];
+             cachedChunk.get(data);
+         } else {
+             data = readAll(chunk);
+         }
          System.out.println(serverId + ": Downloaded chunk " + chunkId + " (" + data.length + " bytes)");
          return data;
      } catch (IOException e) {
          System.err.println(serverId + ": Error downloading chunk " + chunkId + ": " + e.getMessage());
          throw new RemoteException("Failed to download chunk " + chunkId, e);
+     } finally {
+         inFlightRequests.decrementAndGet();
      }
  }
-}
+ 
+ private ChunkStore.ChunkView openChunk(String chunkId) throws IOException {
+     ChunkStore.ChunkView chunk = chunkStore.open(chunkId);
+     if (chunk == null) {
+         throw new NoSuchFileException(chunkId);
+     }
+     return chunk;
+ }
 
+ private static byte[] readAll(ChunkStore.ChunkView chunk) throws IOException {
+     ByteBuffer data = ByteBuffer.allocate((int) chunk.length());
+     while (data.hasRemaining()) {
+         if (chunk.read(data, data.position()) < 0) {
+             throw new EOFException("Chunk shrank while being read");
+         }
+     }
+     return data.array();
+ }
+}
@@ -0,0 +1,50 @@
+package myrmi;
+
+import java.io.Serializable;
+
+// What a storage server reports in its heartbeat. A server that has registered but not
+// yet sent a heartbeat is represented with unknown (-1) capacity and free space.
+public class StorageStats implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String serverName;
+    private final long capacityBytes;
+    private final long freeBytes;
+    private final int inFlightRequests;
+
+    public StorageStats(String serverName, long capacityBytes, long freeBytes, int inFlightRequests) {
+        this.serverName = serverName;
+        this.capacityBytes = capacityBytes;
+        this.freeBytes = freeBytes;
+        this.inFlightRequests = inFlightRequests;
+    }
+
+    public static StorageStats unknown(String serverName) {
+        return new StorageStats(serverName, -1, -1, 0);
+    }
+
+    public String getServerName() {
+        return serverName;
+    }
+
+    public long getCapacityBytes() {
+        return capacityBytes;
+    }
+
+    public long getFreeBytes() {
+        return freeBytes;
+    }
+
+    public int getInFlightRequests() {
+        return inFlightRequests;
+    }
+
+    public boolean isReported() {
+        return capacityBytes >= 0;
+    }
+
+    @Override
+    public String toString() {
+        return serverName + " [free " + (freeBytes >> 20) + "/" + (capacityBytes >> 20) + " MB, " + inFlightRequests + " in flight]";
+    }
+}
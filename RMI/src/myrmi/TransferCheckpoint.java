@@ -0,0 +1,75 @@
+package myrmi;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+// Append-only record of a transfer's finished chunks, so an interrupted transfer can pick
+// up where it stopped. The first line says what is being transferred; a checkpoint whose
+// first line doesn't match is stale and starts over. Every later line is one entry, and
+// only entries ending in a newline count, so a line torn by a crash is ignored.
+public class TransferCheckpoint implements Closeable {
+    private final Path path;
+    private final List<String> entries = new ArrayList<>();
+    private BufferedWriter writer;
+
+    private TransferCheckpoint(Path path) {
+        this.path = path;
+    }
+
+    public static TransferCheckpoint open(Path path, String header) throws IOException {
+        TransferCheckpoint checkpoint = new TransferCheckpoint(path);
+        boolean resumed = false;
+        if (Files.exists(path)) {
+            String content = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+            String[] lines = content.split("\n", -1); // the last element is whatever follows the final newline
+            if (lines.length > 1 && lines[0].equals(header)) {
+                for (int i = 1; i < lines.length - 1; i++) {
+                    checkpoint.entries.add(lines[i]);
+                }
+                resumed = true;
+            }
+        }
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        if (resumed) {
+            // Rewrite what survived so a torn tail doesn't get glued onto the next entry.
+            StringBuilder content = new StringBuilder(header).append('\n');
+            for (String entry : checkpoint.entries) {
+                content.append(entry).append('\n');
+            }
+            Files.write(path, content.toString().getBytes(StandardCharsets.UTF_8));
+        } else {
+            Files.write(path, (header + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        checkpoint.writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        return checkpoint;
+    }
+
+    // Entries recorded by earlier attempts.
+    public List<String> entries() {
+        return entries;
+    }
+
+    public synchronized void append(String entry) throws IOException {
+        writer.write(entry);
+        writer.write('\n');
+        writer.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+
+    // Called once the transfer has finished.
+    public void delete() throws IOException {
+        close();
+        Files.deleteIfExists(path);
+    }
+}
@@ -0,0 +1,14 @@
+package myrmi;
+
+import java.rmi.RemoteException;
+
+// Thrown when a storage server calls in under a name the metadata server has no
+// registration for, e.g. after the metadata server lost its state. The storage server
+// should register again and resend its block report.
+public class UnknownStorageServerException extends RemoteException {
+    private static final long serialVersionUID = 1L;
+
+    public UnknownStorageServerException(String message) {
+        super(message);
+    }
+}